@@ -0,0 +1,127 @@
+// Automatically generated code, do not edit
+package serializer.generated;
+import java.nio.ByteBuffer;
+import serializer.GeneratedCodec;
+import serializer.IncomingPacket;
+import serializer.OutgoingPacket;
+import serializer.PacketFormat;
+public class MRPacketCodec extends GeneratedCodec {
+  public static final int INITIALIZE = 0;
+  public static final int DRIVE = 1;
+  public static final int STOP = 2;
+  public static final int ACK_STOP = 3;
+  public static final int READBUMPSENSOR = 4;
+  public static final int BUMPSENSORVALUE = 5;
+  public static final String[] READBUMPSENSOR_SENSOR = { "LEFT", "CENTER", "RIGHT" };
+  /** Receives the field values of decoded packets, enum values are given by their index */
+  public interface Handler {
+    void initialize();
+    void drive(int leftSpeed, int rightSpeed);
+    void stop();
+    void ack_stop();
+    void readBumpSensor(int sensor);
+    void bumpSensorValue(boolean value);
+  }
+  public MRPacketCodec(PacketFormat format) {
+    super(format, new String[] { "initialize", "drive", "stop", "ack_stop", "readBumpSensor", "bumpSensorValue" }, new int[] { 0, 4, 0, 0, 1, 1 });
+  }
+  /** Encode a initialize packet, the packet must be released once sent */
+  public OutgoingPacket encodeInitialize() {
+    OutgoingPacket packet = acquire(0);
+    return packet;
+  }
+  /** Decode a initialize packet, delivering the field values to the handler */
+  public static void decodeInitialize(IncomingPacket packet, Handler handler) {
+    handler.initialize();
+  }
+  /** Encode a drive packet, the packet must be released once sent */
+  public OutgoingPacket encodeDrive(int leftSpeed, int rightSpeed) {
+    OutgoingPacket packet = acquire(1);
+    ByteBuffer buffer = packet.getBuffer();
+    buffer.putShort(4, (short)leftSpeed);
+    buffer.putShort(6, (short)rightSpeed);
+    return packet;
+  }
+  /** Decode a drive packet, delivering the field values to the handler */
+  public static void decodeDrive(IncomingPacket packet, Handler handler) {
+    ByteBuffer buffer = packet.getBuffer();
+    int base = packet.getBase();
+    handler.drive(buffer.getShort(base+4)&0xffff, buffer.getShort(base+6)&0xffff);
+  }
+  public static int drive_leftSpeed(IncomingPacket packet) {
+    ByteBuffer buffer = packet.getBuffer();
+    int base = packet.getBase();
+    return buffer.getShort(base+4)&0xffff;
+  }
+  public static int drive_rightSpeed(IncomingPacket packet) {
+    ByteBuffer buffer = packet.getBuffer();
+    int base = packet.getBase();
+    return buffer.getShort(base+6)&0xffff;
+  }
+  /** Encode a stop packet, the packet must be released once sent */
+  public OutgoingPacket encodeStop() {
+    OutgoingPacket packet = acquire(2);
+    return packet;
+  }
+  /** Decode a stop packet, delivering the field values to the handler */
+  public static void decodeStop(IncomingPacket packet, Handler handler) {
+    handler.stop();
+  }
+  /** Encode a ack_stop packet, the packet must be released once sent */
+  public OutgoingPacket encodeAck_stop() {
+    OutgoingPacket packet = acquire(3);
+    return packet;
+  }
+  /** Decode a ack_stop packet, delivering the field values to the handler */
+  public static void decodeAck_stop(IncomingPacket packet, Handler handler) {
+    handler.ack_stop();
+  }
+  /** Encode a readBumpSensor packet, the packet must be released once sent */
+  public OutgoingPacket encodeReadBumpSensor(int sensor) {
+    OutgoingPacket packet = acquire(4);
+    ByteBuffer buffer = packet.getBuffer();
+    buffer.put(4, (byte)sensor);
+    return packet;
+  }
+  /** Decode a readBumpSensor packet, delivering the field values to the handler */
+  public static void decodeReadBumpSensor(IncomingPacket packet, Handler handler) {
+    ByteBuffer buffer = packet.getBuffer();
+    int base = packet.getBase();
+    handler.readBumpSensor(buffer.get(base+4)&0xff);
+  }
+  public static int readBumpSensor_sensor(IncomingPacket packet) {
+    ByteBuffer buffer = packet.getBuffer();
+    int base = packet.getBase();
+    return buffer.get(base+4)&0xff;
+  }
+  /** Encode a bumpSensorValue packet, the packet must be released once sent */
+  public OutgoingPacket encodeBumpSensorValue(boolean value) {
+    OutgoingPacket packet = acquire(5);
+    ByteBuffer buffer = packet.getBuffer();
+    buffer.put(4, value ? (byte)1 : (byte)0);
+    return packet;
+  }
+  /** Decode a bumpSensorValue packet, delivering the field values to the handler */
+  public static void decodeBumpSensorValue(IncomingPacket packet, Handler handler) {
+    ByteBuffer buffer = packet.getBuffer();
+    int base = packet.getBase();
+    handler.bumpSensorValue(buffer.get(base+4)!=0);
+  }
+  public static boolean bumpSensorValue_value(IncomingPacket packet) {
+    ByteBuffer buffer = packet.getBuffer();
+    int base = packet.getBase();
+    return buffer.get(base+4)!=0;
+  }
+  /** Decode a packet of any format, delivering the field values to the corresponding handler method */
+  public static void dispatch(IncomingPacket packet, Handler handler) {
+    switch(packet.getID()) {
+    case 0: decodeInitialize(packet, handler); break;
+    case 1: decodeDrive(packet, handler); break;
+    case 2: decodeStop(packet, handler); break;
+    case 3: decodeAck_stop(packet, handler); break;
+    case 4: decodeReadBumpSensor(packet, handler); break;
+    case 5: decodeBumpSensorValue(packet, handler); break;
+    default: throw new Error("Illegal packet ID");
+    }
+  }
+}
@@ -32,7 +32,12 @@ package examples.communication;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import serializer.Communicator;
 import serializer.IPacketHandler;
@@ -40,10 +45,12 @@ import serializer.IncomingPacket;
 import serializer.Packet;
 import serializer.PacketFormat;
 import serializer.Packetizer;
+import serializer.SharedMemoryChannel;
 
 /**
  * Simple controller that stores incoming packets in a queue,
- * and executes a fixed sequence of actions.
+ * and executes a fixed sequence of actions.  Sensors are read
+ * using requests, so several readings can be in flight at once.
  * @author ups
  */
 public class Controller implements IPacketHandler {
@@ -68,10 +75,18 @@ public class Controller implements IPacketHandler {
     }
     
     /**
-     * Simple test routine
+     * Whether to communicate through shared memory instead of a socket
+     */
+    private boolean sharedMemory = false;
+
+    /**
+     * Simple test routine, communicating through shared memory if given the -shm option
+     * (the driver must then be started first)
      */
     public static void main(String argv[]) throws IOException {
-        new Controller().main();
+        Controller controller = new Controller();
+        controller.sharedMemory = argv.length>0 && argv[0].equals("-shm");
+        controller.main();
     }
     
     /**
@@ -80,8 +95,10 @@ public class Controller implements IPacketHandler {
      */
     public void main() throws IOException {
         PacketFormat format = new MobileRobotComm.MRPacket();
-        Communicator comm = new Communicator(format,getCommunicationChannel());
-        comm.addPacketHandler(this);
+        Communicator comm = sharedMemory ?
+                new Communicator(format,SharedMemoryChannel.open(MobileRobotComm.SHARED_MEMORY)) :
+                new Communicator(format,getCommunicationChannel());
+        comm.addPacketHandler("ack_stop",this);
         Packetizer ptz = comm.getPacketizer();
         System.out.println("Test 1: sending packets...");
         comm.send(ptz.makePacket("drive",100,100));
@@ -90,13 +107,25 @@ public class Controller implements IPacketHandler {
         while(!ptz.is(receive(),"ack_stop")) { System.out.println("Waiting"); }
         comm.send(ptz.makePacket("drive",50,50));
         System.out.println("Test 2: reading sensors..."); System.out.flush();
+        String[] sensors = { "LEFT", "CENTER", "RIGHT" };
         while(true) {
-        	comm.send(ptz.makePacket("readBumpSensor", "CENTER"));
-        	IncomingPacket in = receive();
-        	if(ptz.is(in,"bumpSensorValue")) {
-        		boolean isSet = in.get_boolean("value");
-        		System.out.println(isSet ? "bump!" : "nothing");
-        	}
+            // All sensors are read concurrently, each response completes its own request
+            List<CompletableFuture<IncomingPacket>> readings = new ArrayList<CompletableFuture<IncomingPacket>>();
+            for(String sensor: sensors)
+                readings.add(comm.request(ptz.makePacket("readBumpSensor", sensor), 1, TimeUnit.SECONDS));
+            for(int i=0; i<sensors.length; i++) {
+                try {
+                    IncomingPacket in = readings.get(i).get();
+                    if(ptz.is(in,"bumpSensorValue")) {
+                        boolean isSet = in.get_boolean("value");
+                        System.out.println(sensors[i]+": "+(isSet ? "bump!" : "nothing"));
+                    }
+                } catch (ExecutionException e) {
+                    System.out.println(sensors[i]+": no reading ("+e.getCause()+")");
+                } catch (InterruptedException e) {
+                    throw new Error("Interrupted");
+                }
+            }
         	try {
 				Thread.sleep(1000);
 			} catch (InterruptedException e) {
@@ -34,10 +34,13 @@ import java.net.ServerSocket;
 import java.net.Socket;
 
 import serializer.Communicator;
+import serializer.FieldHandle;
 import serializer.IPacketHandler;
 import serializer.IncomingPacket;
 import serializer.PacketFormat;
+import serializer.PacketType;
 import serializer.Packetizer;
+import serializer.SharedMemoryChannel;
 
 /**
  * A simple textual example of a robot driver (server, the simulated robot) that prints the actions of 
@@ -62,6 +65,10 @@ public class Driver implements IPacketHandler {
         }    
     }
     
+    /**
+     * Whether to communicate through shared memory instead of a socket
+     */
+    protected boolean sharedMemory = false;
     /**
      * The communicator used to structure communication
      */
@@ -70,22 +77,30 @@ public class Driver implements IPacketHandler {
      * The packetizer used to deliver serialized data
      */
     private Packetizer packetizer;
+    /**
+     * Precompiled handles for the fields read by the driver
+     */
+    private FieldHandle leftSpeed, rightSpeed, sensor;
+    /**
+     * Precomputed tokens for the packet formats used by the driver
+     */
+    private PacketType drive, stop, ackStop, readSensor, sensorValue;
     
     /**
      * Handle incoming packets (invoking robot functionality, obeying protocol) 
      */
     @Override public void handlePacket(IncomingPacket packet) {
         try {
-            if(packetizer.is(packet,"drive")) {
-                int left = packet.get_uint16("leftSpeed");
-                int right = packet.get_uint16("rightSpeed");
+            if(packetizer.is(packet,drive)) {
+                int left = packet.get_uint16(leftSpeed);
+                int right = packet.get_uint16(rightSpeed);
                 robotDrive(left,right);
-            } else if(packetizer.is(packet,"stop")) {
+            } else if(packetizer.is(packet,stop)) {
                 robotStop();
-                comm.send(packetizer.makePacket("ack_stop"));
-            } else if(packetizer.is(packet,"readBumpSensor")) {
-                String sensor = packet.get_enum("sensor");
-                comm.send(packetizer.makePacket("bumpSensorValue", readBumpSensor(sensor)));
+                comm.send(packetizer.makePacket(ackStop));
+            } else if(packetizer.is(packet,readSensor)) {
+                String name = packet.get_enum(sensor);
+                comm.reply(packet, packetizer.makePacket(sensorValue, readBumpSensor(name)));
             } else throw new Error("Should not happen");
         } catch(IOException exn) {
             throw new Error("IO Exception:"+exn);
@@ -124,16 +139,29 @@ public class Driver implements IPacketHandler {
      */
     public void main() throws IOException {
         PacketFormat format = new MobileRobotComm.MRPacket();
-        comm = new Communicator(format,getCommunicationChannel());
+        if(sharedMemory)
+            comm = new Communicator(format,SharedMemoryChannel.create(MobileRobotComm.SHARED_MEMORY));
+        else
+            comm = new Communicator(format,getCommunicationChannel());
         packetizer = comm.getPacketizer();
+        leftSpeed = packetizer.field("drive","leftSpeed");
+        rightSpeed = packetizer.field("drive","rightSpeed");
+        sensor = packetizer.field("readBumpSensor","sensor");
+        drive = packetizer.type("drive");
+        stop = packetizer.type("stop");
+        ackStop = packetizer.type("ack_stop");
+        readSensor = packetizer.type("readBumpSensor");
+        sensorValue = packetizer.type("bumpSensorValue");
         comm.addPacketHandler(this);
     }
 
     /**
-     * Start main instance method
+     * Start main instance method, communicating through shared memory if given the -shm option
      */
     public static void main(String argv[]) throws IOException {
-        new Driver().main(); 
+        Driver driver = new Driver();
+        driver.sharedMemory = argv.length>0 && argv[0].equals("-shm");
+        driver.main(); 
     }
     
 }
@@ -29,6 +29,8 @@ either expressed or implied, of the University of Southern Denmark.
 
 package examples.communication;
 
+import java.io.File;
+
 import serializer.PacketFormat;
 
 /**
@@ -38,11 +40,17 @@ import serializer.PacketFormat;
  */
 public abstract class MobileRobotComm {
 
+    /**
+     * The file used for communication through shared memory, when the driver and the
+     * controller run on the same host (started with the -shm option)
+     */
+    static final File SHARED_MEMORY = new File(System.getProperty("java.io.tmpdir"),"mobilerobot.shm");
+
     /**
      * The packet format
      * @author ups
      */
-    static class MRPacket extends PacketFormat {
+    public static class MRPacket extends PacketFormat {
 
         @Override
         protected void build() {
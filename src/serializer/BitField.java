@@ -0,0 +1,97 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helper class: reads and writes integer values of arbitrary width (1 to 32 bits) at
+ * arbitrary bit offsets, as used by bit-packed packet formats.  Bits are numbered from
+ * the most significant bit of the first byte, so a value stored across several bytes
+ * is big-endian like all other packet data.
+ * @author ups
+ */
+public final class BitField {
+
+    /**
+     * Not instantiable
+     */
+    private BitField() { }
+
+    /**
+     * Read an unsigned value (a 32-bit value is returned as the corresponding int)
+     * @param buffer the buffer to read from
+     * @param base the index in the buffer that the bit offset is relative to
+     * @param bitOffset the offset of the first bit of the value
+     * @param width the number of bits of the value
+     * @return the value
+     */
+    public static int read(ByteBuffer buffer, int base, int bitOffset, int width) {
+        int first = bitOffset>>>3, last = (bitOffset+width-1)>>>3;
+        long bits = 0;
+        for(int i=first; i<=last; i++) bits = (bits<<8)|(buffer.get(base+i)&0xff);
+        bits >>>= ((last+1)<<3)-(bitOffset+width);
+        return (int)(bits&((1L<<width)-1));
+    }
+
+    /**
+     * Read a signed (two's complement) value
+     * @param buffer the buffer to read from
+     * @param base the index in the buffer that the bit offset is relative to
+     * @param bitOffset the offset of the first bit of the value
+     * @param width the number of bits of the value
+     * @return the value, sign extended
+     */
+    public static int readSigned(ByteBuffer buffer, int base, int bitOffset, int width) {
+        int value = read(buffer,base,bitOffset,width);
+        return (value<<(32-width))>>(32-width);
+    }
+
+    /**
+     * Write a value, truncated to the given width, leaving all other bits unchanged
+     * @param buffer the buffer to write to
+     * @param base the index in the buffer that the bit offset is relative to
+     * @param bitOffset the offset of the first bit of the value
+     * @param width the number of bits of the value
+     * @param value the value to write
+     */
+    public static void write(ByteBuffer buffer, int base, int bitOffset, int width, int value) {
+        int first = bitOffset>>>3, last = (bitOffset+width-1)>>>3;
+        int shift = ((last+1)<<3)-(bitOffset+width);
+        long mask = ((1L<<width)-1)<<shift;
+        long bits = ((long)value<<shift)&mask;
+        for(int i=last; i>=first; i--) {
+            int m = (int)(mask&0xff);
+            buffer.put(base+i, (byte)((buffer.get(base+i)&~m)|(int)(bits&0xff)));
+            mask >>>= 8;
+            bits >>>= 8;
+        }
+    }
+}
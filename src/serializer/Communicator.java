@@ -33,9 +33,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * A generic communicator that for a given packet format and socket provides the ability
@@ -43,32 +51,53 @@ import java.util.Set;
  * an observer, serialization through Packetizer objects for which this object acts as a
  * factory.  
  * 
- * Packet reception runs in a separate thread (but dispatches all packets in that
- * same thread), packet sending runs in the callers thread.
+ * Packet reception runs in a separate thread, packet sending runs in the callers thread.
+ * By default reception uses a dedicated platform thread which also dispatches all packets,
+ * other execution modes run reception and dispatching in virtual threads (see ExecutionMode).
+ * Incoming data is framed by a PacketDecoder, so packets may be split or merged arbitrarily
+ * by the stream.  When created with a PacketBufferPool, packets are instead received without
+ * copying or allocation, as leased views of pooled buffers (see IncomingPacket).
+ * Sent packets are by default written immediately, a FlushPolicy can be set to batch them.
+ * Received packets can be passed to the handlers through a bounded InboundQueue.
+ * Instead of a socket, two processes on the same host can communicate through a
+ * SharedMemoryChannel, using the same framing.  Traffic, handler and send times, and queue
+ * depths can be measured by enabling metrics.
  * 
- * WARNING: makes strong assumptions about how data is delivered, it assumes that a single
- * read command provides a single packet, nothing more, nothing less!
+ * Requests sent using request are tagged with a correlation ID, and the response (sent by
+ * the remote endpoint using reply) completes the future returned for the request instead of
+ * being dispatched to the packet handlers.  Requests and responses are marked differently on
+ * the wire, so both endpoints can issue requests concurrently; incoming requests are always
+ * dispatched to the packet handlers.  Any number of requests can be outstanding.
  * 
  * @author ups
  */
-public class Communicator extends Thread {
+public class Communicator implements Runnable, IPacketSender {
     
     /**
-     * Store incoming packets in this buffer, if too large the communicator will fail
-     * in its current implementation
+     * Size of the buffer used for each read from the input stream (packets larger than
+     * this are reassembled by the decoder)
      */
     private static final int MAX_BUFFER_SIZE = 1024;
+    /**
+     * Maximal number of bytes batched for sending before a write is forced
+     */
+    private static final int MAX_PENDING_BYTES = 64*1024;
     
     /**
      * The packet format (aka model) used for this communicator
      */
     private PacketFormat format;
     /**
-     * The set of packet handlers (observers)
+     * The pool used for zero-copy reception, null when packets are received by copying
      */
-    private Set<IPacketHandler> handlers = Collections.synchronizedSet(new HashSet<IPacketHandler>());
+    private PacketBufferPool pool;
     /**
-     * The bidirectional channel on which communication is done
+     * The dispatcher distributing packets to the packet handlers (observers)
+     */
+    private PacketDispatcher dispatcher;
+    /**
+     * The bidirectional channel on which communication is done, null when communicating
+     * through shared memory
      */
     private Socket channel;
     /**
@@ -79,6 +108,55 @@ public class Communicator extends Thread {
      * The input stream obtained from the channel
      */
     private InputStream ins;
+    /**
+     * The policy deciding when sent packets are written
+     */
+    private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+    /**
+     * Packets batched for sending, null when packets are written immediately
+     */
+    private OutboundQueue outbound;
+    /**
+     * For each packet ID, whether batched packets are coalesced (replaced by newer packets
+     * of the same format)
+     */
+    private boolean[] coalescedSends;
+    /**
+     * Outstanding requests, by correlation ID
+     */
+    private ConcurrentHashMap<Integer,CompletableFuture<IncomingPacket>> requests =
+            new ConcurrentHashMap<Integer,CompletableFuture<IncomingPacket>>();
+    /**
+     * Source of correlation IDs for requests
+     */
+    private AtomicInteger correlations = new AtomicInteger();
+    /**
+     * Set when the receiving thread has exited, after which requests fail immediately
+     */
+    private volatile boolean closed = false;
+    /**
+     * The log recording all received packets, null if not capturing
+     */
+    private volatile PacketCapture capture;
+    /**
+     * The metrics being recorded, null if not enabled
+     */
+    private volatile CommunicatorMetrics metrics;
+    /**
+     * Task flushing batched packets after the delay given by the flush policy
+     */
+    private Runnable flushTask = new Runnable() {
+        @Override public void run() {
+            try {
+                synchronized(outs) {
+                    if(outbound!=null) outbound.flushed();
+                    flush();
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to flush: "+e);
+            }
+        }
+    };
     
     /**
      * Create a new communicator object with the given packet format working over the given socket,
@@ -88,57 +166,454 @@ public class Communicator extends Thread {
      * @throws IOException if input/output streams could not be created
      */
     public Communicator(PacketFormat format, Socket communicationChannel) throws IOException {
+        this(format,communicationChannel,ExecutionMode.PLATFORM);
+    }
+    /**
+     * Create a new communicator object with the given packet format working over the given socket,
+     * and also starts packet reception using the given execution mode.  Note that virtual threads
+     * are daemon threads, they do not keep the program alive.
+     * @param format the packet format to use
+     * @param communicationChannel the socket to use
+     * @param mode the execution mode for packet reception and dispatching
+     * @throws IOException if input/output streams could not be created
+     */
+    public Communicator(PacketFormat format, Socket communicationChannel, ExecutionMode mode) throws IOException {
+        this(format,communicationChannel,mode,null);
+    }
+    /**
+     * Create a new communicator object with the given packet format working over the given socket,
+     * receiving packets without copying using buffers from the given pool, and also starts packet
+     * reception using the given execution mode.  Handlers must retain packets that they need to
+     * keep after returning.
+     * @param format the packet format to use
+     * @param communicationChannel the socket to use
+     * @param mode the execution mode for packet reception and dispatching
+     * @param pool the pool providing receive buffers, or null for receiving packets by copying
+     * @throws IOException if input/output streams could not be created
+     */
+    public Communicator(PacketFormat format, Socket communicationChannel, ExecutionMode mode, PacketBufferPool pool) throws IOException {
+        this(format,communicationChannel,communicationChannel.getInputStream(),communicationChannel.getOutputStream(),mode,pool);
+    }
+    /**
+     * Create a new communicator object with the given packet format working over the given
+     * shared-memory channel, and also starts the packet reception thread.
+     * @param format the packet format to use
+     * @param communicationChannel the shared-memory channel to use
+     */
+    public Communicator(PacketFormat format, SharedMemoryChannel communicationChannel) {
+        this(format,communicationChannel,ExecutionMode.PLATFORM,null);
+    }
+    /**
+     * Create a new communicator object with the given packet format working over the given
+     * shared-memory channel, receiving packets using buffers from the given pool (if any), and
+     * also starts packet reception using the given execution mode.
+     * @param format the packet format to use
+     * @param communicationChannel the shared-memory channel to use
+     * @param mode the execution mode for packet reception and dispatching
+     * @param pool the pool providing receive buffers, or null for receiving packets by copying
+     */
+    public Communicator(PacketFormat format, SharedMemoryChannel communicationChannel, ExecutionMode mode, PacketBufferPool pool) {
+        this(format,null,communicationChannel.getInputStream(),communicationChannel.getOutputStream(),mode,pool);
+    }
+    /**
+     * Create a new communicator object working over the given streams
+     * @param format the packet format to use
+     * @param socket the socket providing the streams, or null
+     * @param ins the stream to read from
+     * @param outs the stream to write to
+     * @param mode the execution mode for packet reception and dispatching
+     * @param pool the pool providing receive buffers, or null for receiving packets by copying
+     */
+    private Communicator(PacketFormat format, Socket socket, InputStream ins, OutputStream outs, ExecutionMode mode, PacketBufferPool pool) {
         this.format = format;
-        this.channel = communicationChannel;
-        this.outs = channel.getOutputStream();
-        this.ins = channel.getInputStream();
-        this.start();
+        this.pool = pool;
+        this.channel = socket;
+        this.outs = outs;
+        this.ins = ins;
+        this.dispatcher = new PacketDispatcher(mode,format.getModel().size());
+        this.coalescedSends = new boolean[format.getModel().size()];
+        if(mode==ExecutionMode.PLATFORM)
+            new Thread(this,"Communicator").start();
+        else
+            VirtualThreads.executor().execute(this);
     }
     /**
      * Add a packet handler (observer for packet reception)
      * @param handler the handler, invoked when a new packet arrives
      */
     public void addPacketHandler(IPacketHandler handler) {
-        handlers.add(handler);
+        dispatcher.addPacketHandler(handler);
+    }
+    /**
+     * Pass received packets to the handlers through a bounded queue, so that slow handlers
+     * cannot hold up reception or exhaust memory; the returned queue provides statistics
+     * on queue depth and discarded packets.  Replaces any previous queue.
+     * @param capacity the maximal number of packets waiting to be handled
+     * @param policy the policy used when a packet arrives while the queue is full
+     * @return the queue
+     */
+    public InboundQueue setInboundQueue(int capacity, OverflowPolicy policy) {
+        return dispatcher.setInboundQueue(capacity, policy);
+    }
+    /**
+     * Add a packet handler for the packets of a single packet format, which is then
+     * invoked without needing to test the type of the packets it receives
+     * @param packetName the name of the packet format
+     * @param handler the handler, invoked when a new packet of that format arrives
+     */
+    public void addPacketHandler(String packetName, IPacketHandler handler) {
+        addPacketHandler(format.type(packetName), handler);
+    }
+    /**
+     * Add a packet handler for the packets of a single packet type
+     * @param type the token of the packet format
+     * @param handler the handler, invoked when a new packet of that format arrives
+     */
+    public void addPacketHandler(PacketType type, IPacketHandler handler) {
+        dispatcher.addPacketHandler(type.getID(), handler);
+    }
+    /**
+     * Remove a packet handler, for all packets it was added for
+     * @param handler the handler to remove
+     */
+    public void removePacketHandler(IPacketHandler handler) {
+        dispatcher.removePacketHandler(handler);
     }
     /**
      * Create a new packetizer object with the packet format of this communicator
      * @return a new packetizer using the packet format of this communicator
      */
+    @Override
     public Packetizer getPacketizer() {
         return new Packetizer(format.getModel());
     }
     /**
-     * Send an outgoing packet using this communicator
+     * Send an outgoing packet using this communicator (can be called from any thread)
      * @param packet the packet to send
      * @throws IOException if the packet could not be sent
      */
+    @Override
     public void send(OutgoingPacket packet) throws IOException {
-        byte[] bytes = packet.getAllBytes();
-        outs.write(bytes);
-        outs.flush();
+        packet.checkComplete();
+        CommunicatorMetrics recorder = metrics;
+        if(recorder==null) {
+            write(packet);
+            return;
+        }
+        long start = System.nanoTime();
+        write(packet);
+        OutboundQueue queue = outbound;
+        recorder.sent(packet.getID(), packet.getSize(), System.nanoTime()-start, queue==null ? 0 : queue.getPending());
+    }
+    /**
+     * Write or batch a packet according to the flush policy
+     * @param packet the packet to send
+     * @throws IOException if the packet could not be sent
+     */
+    private void write(OutgoingPacket packet) throws IOException {
+        synchronized(outs) {
+            if(outbound==null) {
+                if(packet.getCorrelation()!=0) outs.write(packet.getCorrelationHeader());
+                outs.write(packet.getAllBytes());
+                outs.flush();
+                return;
+            }
+            if(!outbound.fits(packet)) flush();
+            outbound.add(packet, coalescedSends[packet.getID()]);
+            if(outbound.getPending()>=flushPolicy.getThreshold())
+                flush();
+            else
+                outbound.schedule(flushPolicy, flushTask);
+        }
+    }
+    /**
+     * Send a packet as the response to a request (can be called from any thread)
+     * @param request the request being answered
+     * @param response the packet to send
+     * @throws IOException if the packet could not be sent
+     */
+    @Override
+    public void reply(IncomingPacket request, OutgoingPacket response) throws IOException {
+        synchronized(outs) {
+            response.setCorrelation(request.getCorrelation(), true);
+            try {
+                send(response);
+            } finally {
+                response.setCorrelation(0, false);
+            }
+        }
+    }
+    /**
+     * Send a packet as a request, the response is delivered to the returned future rather
+     * than to the packet handlers.  A pooled response must be released by the receiver of
+     * the future once handled.
+     * @param packet the request packet
+     * @return the future completed with the response
+     * @throws IOException if the packet could not be sent
+     */
+    public CompletableFuture<IncomingPacket> request(OutgoingPacket packet) throws IOException {
+        int correlation;
+        do correlation = correlations.incrementAndGet(); while(correlation==0);
+        final Integer key = correlation;
+        final CompletableFuture<IncomingPacket> response = new CompletableFuture<IncomingPacket>();
+        requests.put(key, response);
+        response.whenComplete(new BiConsumer<IncomingPacket,Throwable>() {
+            @Override public void accept(IncomingPacket packet, Throwable failure) {
+                requests.remove(key, response);
+            }
+        });
+        if(closed) {
+            // The receiving thread has exited, so no response can arrive
+            response.completeExceptionally(new IOException("Communication channel closed"));
+            return response;
+        }
+        synchronized(outs) {
+            packet.setCorrelation(correlation, false);
+            try {
+                send(packet);
+            } catch (IOException e) {
+                response.completeExceptionally(e);
+                throw e;
+            } finally {
+                packet.setCorrelation(0, false);
+            }
+        }
+        return response;
+    }
+    /**
+     * Send a packet as a request, failing the returned future with a TimeoutException
+     * if no response has arrived within the given time
+     * @param packet the request packet
+     * @param timeout the maximal time to wait for the response
+     * @param unit the unit of the timeout
+     * @return the future completed with the response
+     * @throws IOException if the packet could not be sent
+     */
+    public CompletableFuture<IncomingPacket> request(OutgoingPacket packet, long timeout, TimeUnit unit) throws IOException {
+        final CompletableFuture<IncomingPacket> response = request(packet);
+        final ScheduledFuture<?> timer = Timers.scheduler().schedule(new Runnable() {
+            @Override public void run() {
+                response.completeExceptionally(new TimeoutException("No response to request"));
+            }
+        }, timeout, unit);
+        response.whenComplete(new BiConsumer<IncomingPacket,Throwable>() {
+            @Override public void accept(IncomingPacket packet, Throwable failure) {
+                timer.cancel(false);
+            }
+        });
+        return response;
+    }
+    /**
+     * Record all packets received from now on in a capture log (for later replay using
+     * PacketReplay), or stop recording
+     * @param capture the capture log, or null to stop recording
+     */
+    public void setCapture(PacketCapture capture) {
+        this.capture = capture;
     }
     /**
-     * The behavior of the packet reception thread
-     * WARNING: makes strong assumptions about how data is delivered, it assumes that a single
-     * read command provides a single packet, nothing more, nothing less!
+     * Start recording metrics (if not already recording), which can then be pulled from the
+     * returned object or registered with JMX
+     * @return the metrics of this communicator
+     */
+    public synchronized CommunicatorMetrics enableMetrics() {
+        if(metrics==null) {
+            metrics = new CommunicatorMetrics(format.getModel(), dispatcher);
+            dispatcher.setMetrics(metrics);
+        }
+        return metrics;
+    }
+    /**
+     * Get the metrics of this communicator
+     * @return the metrics, null if not enabled
+     */
+    public CommunicatorMetrics getMetrics() {
+        return metrics;
+    }
+    /**
+     * Get the number of requests that have not yet received a response
+     * @return number of outstanding requests
+     */
+    public int getOutstandingRequests() {
+        return requests.size();
+    }
+    /**
+     * Check whether packet reception has stopped, i.e., the end of the stream was reached or
+     * reading failed
+     * @return true if the reception thread has exited
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+    /**
+     * Set the policy deciding when sent packets are written, any packets batched
+     * under the previous policy are written first
+     * @param policy the flush policy
+     * @throws IOException if batched packets could not be written
+     */
+    public void setFlushPolicy(FlushPolicy policy) throws IOException {
+        synchronized(outs) {
+            flush();
+            flushPolicy = policy;
+            if(policy.isImmediate())
+                outbound = null;
+            else if(outbound==null)
+                outbound = new OutboundQueue(MAX_PENDING_BYTES, channel!=null && channel.getChannel()!=null);
+        }
+    }
+    /**
+     * Set whether packets of the given format are coalesced: a batched packet that has not
+     * yet been written is then overwritten by a newer packet of the same format, so only the
+     * latest value is sent (only applies when the flush policy batches packets, requests and
+     * responses are never coalesced)
+     * @param type the token of the packet format
+     * @param coalesce true to send only the latest value
+     */
+    public void setSendCoalescing(PacketType type, boolean coalesce) {
+        synchronized(outs) {
+            coalescedSends[type.getID()] = coalesce;
+        }
+    }
+    /**
+     * Get the number of batched packets that were overwritten by newer packets of the same
+     * format (since the flush policy was last set)
+     * @return number of packets not sent
+     */
+    public long getCoalescedSends() {
+        synchronized(outs) {
+            return outbound==null ? 0 : outbound.getCoalesced();
+        }
+    }
+    /**
+     * Write all batched packets (if the flush policy batches packets)
+     * @throws IOException if the packets could not be written
+     */
+    public void flush() throws IOException {
+        synchronized(outs) {
+            if(outbound==null || outbound.getPending()==0) return;
+            SocketChannel out = channel==null ? null : channel.getChannel();
+            if(out!=null) {
+                // Blocking channel: a gathering write only returns early if interrupted
+                while(outbound.getPending()>0) outbound.write(out);
+            } else {
+                outbound.write(outs);
+                outs.flush();
+            }
+        }
+    }
+    /**
+     * The behavior of the packet reception thread: reads whatever data is available,
+     * and distributes every complete packet found so far to the observers
      */
     @Override
     public void run() {
         try {
-            byte[] buffer = new byte[MAX_BUFFER_SIZE];
-            while(true) {
-                // Read data
-                if(ins.read(buffer)==-1) break; // EOF
-                // Create packet from data and distribute to observers
-                IncomingPacket p = new IncomingPacket(buffer,format.getModel());
-                for(IPacketHandler h: handlers) {
-                    h.handlePacket(p);
-                }
-            }
+            if(pool==null)
+                receive();
+            else
+                receiveZeroCopy();
             System.out.println("Communication channel closed.");
         } catch (IOException e) {
+            closed = true;
+            failRequests(e);
             throw new Error("IO Exception: "+e);
+        } finally {
+            closed = true;
+            failRequests(new IOException("Communication channel closed"));
+            dispatcher.close();
+        }
+    }
+    /**
+     * Receive packets by copying them out of the data read from the stream
+     * @throws IOException if the data could not be read
+     */
+    private void receive() throws IOException {
+        byte[] buffer = new byte[MAX_BUFFER_SIZE];
+        PacketDecoder decoder = new PacketDecoder(format.getModel());
+        while(true) {
+            // Read data
+            int count = ins.read(buffer);
+            if(count==-1) break; // EOF
+            decoder.append(buffer, 0, count);
+            // Create packets from data and distribute to observers
+            IncomingPacket p;
+            int packets = 0;
+            while((p = decoder.next())!=null) {
+                deliver(p);
+                packets++;
+            }
+            CommunicatorMetrics recorder = metrics;
+            if(recorder!=null) recorder.read(count, packets);
         }
     }
+    /**
+     * Receive packets as views of the pooled buffers that the data is read into
+     * @throws IOException if the data could not be read
+     */
+    private void receiveZeroCopy() throws IOException {
+        ZeroCopyDecoder decoder = new ZeroCopyDecoder(format.getModel(), pool);
+        ReadableByteChannel in = channel==null ? null : channel.getChannel();
+        try {
+            while(true) {
+                // Read data directly into the receive buffer
+                ByteBuffer buffer = decoder.receiveBuffer();
+                int count;
+                if(buffer.hasArray())
+                    count = ins.read(buffer.array(), buffer.arrayOffset()+buffer.position(), buffer.remaining());
+                else {
+                    if(in==null) in = Channels.newChannel(ins);
+                    count = in.read(buffer);
+                }
+                if(count==-1) break; // EOF
+                decoder.received(count);
+                // Distribute views of the packets to observers
+                IncomingPacket p;
+                int packets = 0;
+                while((p = decoder.next())!=null) {
+                    deliver(p);
+                    packets++;
+                }
+                CommunicatorMetrics recorder = metrics;
+                if(recorder!=null) recorder.read(count, packets);
+            }
+        } finally {
+            decoder.close();
+        }
+    }
+    /**
+     * Deliver a received packet: responses complete the corresponding request, all other
+     * packets (including requests, and responses to requests no longer outstanding) are
+     * dispatched to the packet handlers
+     * @param packet the received packet
+     */
+    private void deliver(IncomingPacket packet) {
+        CommunicatorMetrics recorder = metrics;
+        if(recorder!=null) recorder.received(packet.getID(), packet.getSize());
+        PacketCapture log = capture;
+        if(log!=null) {
+            try {
+                log.record(packet);
+            } catch (IOException e) {
+                System.out.println("Unable to capture, recording stopped: "+e);
+                capture = null;
+            }
+        }
+        if(packet.isResponse()) {
+            CompletableFuture<IncomingPacket> response = requests.remove(packet.getCorrelation());
+            if(response!=null) {
+                // The lease on the packet is passed on to the receiver of the future
+                if(!response.complete(packet)) packet.release();
+                return;
+            }
+        }
+        dispatcher.dispatch(packet);
+    }
+    /**
+     * Fail all outstanding requests
+     * @param cause the reason for the failure
+     */
+    private void failRequests(IOException cause) {
+        for(CompletableFuture<IncomingPacket> response: requests.values())
+            response.completeExceptionally(cause);
+    }
 }
@@ -0,0 +1,467 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * Instrumentation of a communicator: counts of packets and bytes sent and received per
+ * packet format, histograms of the time spent by the handlers of each packet format and of
+ * the time spent sending packets, the sizes of reads from the channel, and the depths of
+ * the inbound and outbound queues.  Obtained from Communicator.enableMetrics; the values
+ * can be pulled directly, or through JMX once registered.  Times are in nanoseconds.
+ * @author ups
+ */
+public final class CommunicatorMetrics implements CommunicatorMetricsMBean {
+
+    /**
+     * Names of the packet formats, indexed by packet ID
+     */
+    private final String[] names;
+    /**
+     * Number of packets sent, indexed by packet ID
+     */
+    private final AtomicLongArray sent;
+    /**
+     * Number of bytes sent, indexed by packet ID
+     */
+    private final AtomicLongArray sentBytes;
+    /**
+     * Number of packets received, indexed by packet ID
+     */
+    private final AtomicLongArray received;
+    /**
+     * Number of bytes received, indexed by packet ID
+     */
+    private final AtomicLongArray receivedBytes;
+    /**
+     * Time spent by the handlers of each packet, indexed by packet ID
+     */
+    private final Histogram[] handlerTime;
+    /**
+     * Time spent sending each packet
+     */
+    private final Histogram sendLatency = new Histogram();
+    /**
+     * Number of bytes obtained by each read
+     */
+    private final Histogram readSize = new Histogram();
+    /**
+     * Number of reads that completed more than one packet
+     */
+    private final AtomicLong multiPacketReads = new AtomicLong();
+    /**
+     * Number of bytes batched for sending after the last packet sent
+     */
+    private volatile int outboundPending = 0;
+    /**
+     * The dispatcher of the communicator, for observing its inbound queue
+     */
+    private final PacketDispatcher dispatcher;
+    /**
+     * The name under which the metrics are registered with JMX, null if not registered
+     */
+    private ObjectName registered;
+
+    /**
+     * Create the metrics of a communicator
+     * @param model the complete packet format model of the communicator
+     * @param dispatcher the dispatcher of the communicator
+     */
+    CommunicatorMetrics(List<PacketModel> model, PacketDispatcher dispatcher) {
+        int types = model.size();
+        this.names = new String[types];
+        for(int id=0; id<types; id++) names[id] = model.get(id).getName();
+        this.sent = new AtomicLongArray(types);
+        this.sentBytes = new AtomicLongArray(types);
+        this.received = new AtomicLongArray(types);
+        this.receivedBytes = new AtomicLongArray(types);
+        this.handlerTime = new Histogram[types];
+        for(int id=0; id<types; id++) handlerTime[id] = new Histogram();
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Record a packet sent
+     * @param id the packet ID
+     * @param size the size of the packet
+     * @param time the time spent sending
+     * @param pending the number of bytes batched for sending afterwards
+     */
+    void sent(int id, int size, long time, int pending) {
+        sent.incrementAndGet(id);
+        sentBytes.addAndGet(id, size);
+        sendLatency.record(time);
+        outboundPending = pending;
+    }
+
+    /**
+     * Record a packet received
+     * @param id the packet ID
+     * @param size the size of the packet
+     */
+    void received(int id, int size) {
+        received.incrementAndGet(id);
+        receivedBytes.addAndGet(id, size);
+    }
+
+    /**
+     * Record a read from the channel
+     * @param size the number of bytes read
+     * @param packets the number of packets completed by the read
+     */
+    void read(int size, int packets) {
+        readSize.record(size);
+        if(packets>1) multiPacketReads.incrementAndGet();
+    }
+
+    /**
+     * Record the time spent by the handlers of a packet
+     * @param id the packet ID
+     * @param time the time spent
+     */
+    void handled(int id, long time) {
+        handlerTime[id].record(time);
+    }
+
+    /**
+     * Get the number of packets of the given type sent
+     * @param type the token of the packet format
+     * @return number of packets
+     */
+    public long getPacketsSent(PacketType type) {
+        return sent.get(type.getID());
+    }
+
+    /**
+     * Get the number of bytes sent in packets of the given type
+     * @param type the token of the packet format
+     * @return number of bytes
+     */
+    public long getBytesSent(PacketType type) {
+        return sentBytes.get(type.getID());
+    }
+
+    /**
+     * Get the number of packets of the given type received
+     * @param type the token of the packet format
+     * @return number of packets
+     */
+    public long getPacketsReceived(PacketType type) {
+        return received.get(type.getID());
+    }
+
+    /**
+     * Get the number of bytes received in packets of the given type
+     * @param type the token of the packet format
+     * @return number of bytes
+     */
+    public long getBytesReceived(PacketType type) {
+        return receivedBytes.get(type.getID());
+    }
+
+    /**
+     * Get the histogram of the time spent by the handlers of packets of the given type
+     * @param type the token of the packet format
+     * @return the histogram
+     */
+    public Histogram getHandlerTime(PacketType type) {
+        return handlerTime[type.getID()];
+    }
+
+    /**
+     * Get the histogram of the time spent sending packets
+     * @return the histogram
+     */
+    public Histogram getSendLatency() {
+        return sendLatency;
+    }
+
+    /**
+     * Get the histogram of the number of bytes obtained by each read
+     * @return the histogram
+     */
+    public Histogram getReadSize() {
+        return readSize;
+    }
+
+    /**
+     * Get the total number of packets sent
+     * @return number of packets
+     */
+    @Override
+    public long getPacketsSent() {
+        return sum(sent);
+    }
+
+    /**
+     * Get the total number of bytes sent (packets including headers)
+     * @return number of bytes
+     */
+    @Override
+    public long getBytesSent() {
+        return sum(sentBytes);
+    }
+
+    /**
+     * Get the total number of packets received
+     * @return number of packets
+     */
+    @Override
+    public long getPacketsReceived() {
+        return sum(received);
+    }
+
+    /**
+     * Get the total number of bytes received (packets including headers)
+     * @return number of bytes
+     */
+    @Override
+    public long getBytesReceived() {
+        return sum(receivedBytes);
+    }
+
+    /**
+     * Get the number of reads from the channel
+     * @return number of reads
+     */
+    @Override
+    public long getReads() {
+        return readSize.getCount();
+    }
+
+    /**
+     * Get the number of reads that completed more than one packet
+     * @return number of reads
+     */
+    @Override
+    public long getMultiPacketReads() {
+        return multiPacketReads.get();
+    }
+
+    /**
+     * Get the median number of bytes obtained by a read
+     * @return number of bytes
+     */
+    @Override
+    public long getReadSize50() {
+        return readSize.getValueAtPercentile(50);
+    }
+
+    /**
+     * Get the median time spent sending a packet
+     * @return time in nanoseconds
+     */
+    @Override
+    public long getSendLatency50() {
+        return sendLatency.getValueAtPercentile(50);
+    }
+
+    /**
+     * Get the 99th percentile of the time spent sending a packet
+     * @return time in nanoseconds
+     */
+    @Override
+    public long getSendLatency99() {
+        return sendLatency.getValueAtPercentile(99);
+    }
+
+    /**
+     * Get the longest time spent sending a packet
+     * @return time in nanoseconds
+     */
+    @Override
+    public long getSendLatencyMax() {
+        return sendLatency.getMax();
+    }
+
+    /**
+     * Get the number of packets waiting in the inbound queue
+     * @return number of packets, 0 if there is no inbound queue
+     */
+    @Override
+    public int getInboundQueueDepth() {
+        InboundQueue queue = dispatcher.getInboundQueue();
+        return queue==null ? 0 : queue.getDepth();
+    }
+
+    /**
+     * Get the largest number of packets that have been waiting in the inbound queue
+     * @return number of packets, 0 if there is no inbound queue
+     */
+    @Override
+    public int getInboundQueueMaxDepth() {
+        InboundQueue queue = dispatcher.getInboundQueue();
+        return queue==null ? 0 : queue.getMaxDepth();
+    }
+
+    /**
+     * Get the number of bytes batched for sending after the last packet sent
+     * @return number of bytes
+     */
+    @Override
+    public int getOutboundPending() {
+        return outboundPending;
+    }
+
+    /**
+     * Get the names of the packet formats, in the order of the per-type values
+     * @return the packet format names, indexed by packet ID
+     */
+    @Override
+    public String[] getPacketTypes() {
+        return names.clone();
+    }
+
+    /**
+     * Get the number of packets sent, per packet format
+     * @return number of packets, indexed by packet ID
+     */
+    @Override
+    public long[] getPacketsSentByType() {
+        return toArray(sent);
+    }
+
+    /**
+     * Get the number of packets received, per packet format
+     * @return number of packets, indexed by packet ID
+     */
+    @Override
+    public long[] getPacketsReceivedByType() {
+        return toArray(received);
+    }
+
+    /**
+     * Get the 99th percentile of the time spent by the handlers of a packet, per packet format
+     * @return time in nanoseconds, indexed by packet ID
+     */
+    @Override
+    public long[] getHandlerTime99ByType() {
+        long[] result = new long[handlerTime.length];
+        for(int id=0; id<result.length; id++) result[id] = handlerTime[id].getValueAtPercentile(99);
+        return result;
+    }
+
+    /**
+     * Get a textual report of all metrics
+     * @return the report
+     */
+    @Override
+    public String report() {
+        StringBuilder result = new StringBuilder();
+        result.append("sent "+getPacketsSent()+" packets ("+getBytesSent()+" bytes), received "+
+                getPacketsReceived()+" packets ("+getBytesReceived()+" bytes)\n");
+        result.append("send latency: "+sendLatency+"\n");
+        result.append("read size: "+readSize+", multi-packet reads "+getMultiPacketReads()+"\n");
+        result.append("inbound queue depth "+getInboundQueueDepth()+" (max "+getInboundQueueMaxDepth()+
+                "), outbound pending "+getOutboundPending()+" bytes\n");
+        for(int id=0; id<names.length; id++) {
+            if(sent.get(id)==0 && received.get(id)==0) continue;
+            result.append(names[id]+": sent "+sent.get(id)+" ("+sentBytes.get(id)+" bytes), received "+
+                    received.get(id)+" ("+receivedBytes.get(id)+" bytes), handler time: "+handlerTime[id]+"\n");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Remove all recorded values
+     */
+    @Override
+    public void reset() {
+        for(int id=0; id<names.length; id++) {
+            sent.set(id, 0);
+            sentBytes.set(id, 0);
+            received.set(id, 0);
+            receivedBytes.set(id, 0);
+            handlerTime[id].reset();
+        }
+        sendLatency.reset();
+        readSize.reset();
+        multiPacketReads.set(0);
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, under the name
+     * serializer:type=Communicator,name=<name>
+     * @param name the name identifying the communicator
+     * @throws JMException if the metrics could not be registered
+     */
+    public synchronized void register(String name) throws JMException {
+        if(registered!=null) unregister();
+        ObjectName objectName = new ObjectName("serializer:type=Communicator,name="+ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registered = objectName;
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server, if registered
+     * @throws JMException if the metrics could not be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if(registered==null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(registered);
+        } finally {
+            registered = null;
+        }
+    }
+
+    /**
+     * Sum the counters of all packet formats
+     * @param counters the counters, indexed by packet ID
+     * @return the sum
+     */
+    private static long sum(AtomicLongArray counters) {
+        long result = 0;
+        for(int id=0; id<counters.length(); id++) result += counters.get(id);
+        return result;
+    }
+
+    /**
+     * Copy the counters of all packet formats
+     * @param counters the counters, indexed by packet ID
+     * @return the values, indexed by packet ID
+     */
+    private static long[] toArray(AtomicLongArray counters) {
+        long[] result = new long[counters.length()];
+        for(int id=0; id<result.length; id++) result[id] = counters.get(id);
+        return result;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+/**
+ * Management interface of CommunicatorMetrics, exposing the metrics of a communicator
+ * through JMX; times are in nanoseconds
+ * @author ups
+ */
+public interface CommunicatorMetricsMBean {
+    /**
+     * Get the total number of packets sent
+     * @return number of packets
+     */
+    public long getPacketsSent();
+    /**
+     * Get the total number of bytes sent (packets including headers)
+     * @return number of bytes
+     */
+    public long getBytesSent();
+    /**
+     * Get the total number of packets received
+     * @return number of packets
+     */
+    public long getPacketsReceived();
+    /**
+     * Get the total number of bytes received (packets including headers)
+     * @return number of bytes
+     */
+    public long getBytesReceived();
+    /**
+     * Get the number of reads from the channel
+     * @return number of reads
+     */
+    public long getReads();
+    /**
+     * Get the number of reads that completed more than one packet
+     * @return number of reads
+     */
+    public long getMultiPacketReads();
+    /**
+     * Get the median number of bytes obtained by a read
+     * @return number of bytes
+     */
+    public long getReadSize50();
+    /**
+     * Get the median time spent sending a packet
+     * @return time in nanoseconds
+     */
+    public long getSendLatency50();
+    /**
+     * Get the 99th percentile of the time spent sending a packet
+     * @return time in nanoseconds
+     */
+    public long getSendLatency99();
+    /**
+     * Get the longest time spent sending a packet
+     * @return time in nanoseconds
+     */
+    public long getSendLatencyMax();
+    /**
+     * Get the number of packets waiting in the inbound queue
+     * @return number of packets, 0 if there is no inbound queue
+     */
+    public int getInboundQueueDepth();
+    /**
+     * Get the largest number of packets that have been waiting in the inbound queue
+     * @return number of packets, 0 if there is no inbound queue
+     */
+    public int getInboundQueueMaxDepth();
+    /**
+     * Get the number of bytes batched for sending after the last packet sent
+     * @return number of bytes
+     */
+    public int getOutboundPending();
+    /**
+     * Get the names of the packet formats, in the order of the per-type values
+     * @return the packet format names, indexed by packet ID
+     */
+    public String[] getPacketTypes();
+    /**
+     * Get the number of packets sent, per packet format
+     * @return number of packets, indexed by packet ID
+     */
+    public long[] getPacketsSentByType();
+    /**
+     * Get the number of packets received, per packet format
+     * @return number of packets, indexed by packet ID
+     */
+    public long[] getPacketsReceivedByType();
+    /**
+     * Get the 99th percentile of the time spent by the handlers of a packet, per packet format
+     * @return time in nanoseconds, indexed by packet ID
+     */
+    public long[] getHandlerTime99ByType();
+    /**
+     * Get a textual report of all metrics
+     * @return the report
+     */
+    public String report();
+    /**
+     * Remove all recorded values
+     */
+    public void reset();
+}
@@ -0,0 +1,577 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server that accepts any number of connections using a given packet format, and
+ * multiplexes all of them over a fixed number of event loop threads using non-blocking
+ * I/O.  Each connection is given its own packet handler, created by a factory when the
+ * connection is accepted; the handler can reply through the connection it was created for.
+ * 
+ * Packets are decoded in the event loop thread that owns the connection.  By default they
+ * are also dispatched in that thread, so handlers should not block; the virtual thread
+ * execution modes instead dispatch in virtual threads, allowing handlers to block.  Packet sending can be done from any thread: data that
+ * cannot be written immediately is queued and written by the event loop, up to a bounded
+ * number of bytes per connection.  A FlushPolicy can be set to batch sent packets, in which
+ * case all packets batched on a connection are written using a single gathering write.  When created with a PacketBufferPool, data is read
+ * directly into pooled buffers and packets are received as leased views of these buffers
+ * (see IncomingPacket).
+ * 
+ * An exception thrown by a handler is reported through the uncaught exception handler of
+ * the event loop thread and only loses the packet being handled; malformed incoming data
+ * closes the connection it arrived on.
+ * 
+ * @author ups
+ */
+public class CommunicatorServer {
+
+    /**
+     * Size of the buffer used by each event loop for reading from its connections
+     */
+    private static final int READ_BUFFER_SIZE = 16*1024;
+    /**
+     * Maximal number of bytes queued for sending on a single connection
+     */
+    private static final int MAX_PENDING_BYTES = 64*1024;
+
+    /**
+     * The packet format (aka model) used for all connections of this server
+     */
+    private PacketFormat format;
+    /**
+     * Factory creating the packet handler of each new connection
+     */
+    private IPacketHandlerFactory factory;
+    /**
+     * The execution mode used for dispatching the packets of each connection
+     */
+    private ExecutionMode mode;
+    /**
+     * The pool used for zero-copy reception, null when packets are received by copying
+     */
+    private PacketBufferPool pool;
+    /**
+     * The channel on which connections are accepted
+     */
+    private ServerSocketChannel serverChannel;
+    /**
+     * The event loops serving the connections, the first one also accepts new connections
+     */
+    private EventLoop[] loops;
+    /**
+     * Index used for assigning new connections to event loops round-robin
+     */
+    private int nextLoop = 0;
+    /**
+     * Number of currently open connections
+     */
+    private AtomicInteger connectionCount = new AtomicInteger();
+    /**
+     * Set when the server is closed
+     */
+    private volatile boolean closed = false;
+    /**
+     * The policy deciding when sent packets are written
+     */
+    private volatile FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+    /**
+     * For each packet ID, whether queued packets are coalesced (replaced by newer packets
+     * of the same format), never modified once published
+     */
+    private volatile boolean[] coalescedSends;
+
+    /**
+     * Create a new server with the given packet format, listening on the given port,
+     * and start its event loop threads.
+     * @param format the packet format to use for all connections
+     * @param port the port to listen on (0 selects an arbitrary free port)
+     * @param eventLoops the number of event loop threads to use
+     * @param factory the factory creating a handler for each new connection
+     * @throws IOException if the server socket or selectors could not be created
+     */
+    public CommunicatorServer(PacketFormat format, int port, int eventLoops, IPacketHandlerFactory factory) throws IOException {
+        this(format,port,eventLoops,factory,ExecutionMode.PLATFORM);
+    }
+
+    /**
+     * Create a new server with the given packet format, listening on the given port,
+     * and start its event loop threads.  Packets of each connection are dispatched
+     * according to the given execution mode (the inline modes dispatch in the event loop).
+     * @param format the packet format to use for all connections
+     * @param port the port to listen on (0 selects an arbitrary free port)
+     * @param eventLoops the number of event loop threads to use
+     * @param factory the factory creating a handler for each new connection
+     * @param mode the execution mode for dispatching packets to handlers
+     * @throws IOException if the server socket or selectors could not be created
+     */
+    public CommunicatorServer(PacketFormat format, int port, int eventLoops, IPacketHandlerFactory factory, ExecutionMode mode) throws IOException {
+        this(format,port,eventLoops,factory,mode,null);
+    }
+
+    /**
+     * Create a new server with the given packet format, listening on the given port,
+     * and start its event loop threads.  Packets are received without copying using
+     * buffers from the given pool, and are dispatched according to the given execution mode.
+     * @param format the packet format to use for all connections
+     * @param port the port to listen on (0 selects an arbitrary free port)
+     * @param eventLoops the number of event loop threads to use
+     * @param factory the factory creating a handler for each new connection
+     * @param mode the execution mode for dispatching packets to handlers
+     * @param pool the pool providing receive buffers, or null for receiving packets by copying
+     * @throws IOException if the server socket or selectors could not be created
+     */
+    public CommunicatorServer(PacketFormat format, int port, int eventLoops, IPacketHandlerFactory factory, ExecutionMode mode, PacketBufferPool pool) throws IOException {
+        if(eventLoops<1) throw new Error("At least one event loop required");
+        this.format = format;
+        this.coalescedSends = new boolean[format.getModel().size()];
+        this.factory = factory;
+        this.mode = mode;
+        this.pool = pool;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        loops = new EventLoop[eventLoops];
+        for(int i=0; i<eventLoops; i++) loops[i] = new EventLoop(i);
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for(EventLoop loop: loops) loop.start();
+    }
+
+    /**
+     * Get the port that the server is listening on
+     * @return the local port
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Get the number of connections currently open
+     * @return number of open connections
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Create a new packetizer object with the packet format of this server
+     * @return a new packetizer using the packet format of this server
+     */
+    public Packetizer getPacketizer() {
+        return new Packetizer(format.getModel());
+    }
+
+    /**
+     * Set the policy deciding when packets sent on the connections of this server are written
+     * @param policy the flush policy
+     */
+    public void setFlushPolicy(FlushPolicy policy) {
+        flushPolicy = policy;
+    }
+
+    /**
+     * Set whether packets of the given format sent on the connections of this server are
+     * coalesced: a packet that has been queued but not yet written is then overwritten by a
+     * newer packet of the same format, so only the latest value is sent (only applies when
+     * the flush policy batches packets, requests and responses are never coalesced)
+     * @param type the token of the packet format
+     * @param coalesce true to send only the latest value
+     */
+    public synchronized void setSendCoalescing(PacketType type, boolean coalesce) {
+        boolean[] updated = coalescedSends.clone();
+        updated[type.getID()] = coalesce;
+        coalescedSends = updated;
+    }
+
+    /**
+     * Stop accepting connections, close all open connections and stop the event loops
+     * @throws IOException if the server socket could not be closed
+     */
+    public void close() throws IOException {
+        closed = true;
+        serverChannel.close();
+        for(EventLoop loop: loops) loop.selector.wakeup();
+    }
+
+    /**
+     * Accept all pending connections, assigning each to an event loop
+     * @throws IOException if a connection could not be accepted
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = serverChannel.accept())!=null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch(IOException exn) {
+                channel.close();
+                throw exn;
+            }
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop+1)%loops.length;
+            loop.register(new Connection(channel, loop));
+        }
+    }
+
+    /**
+     * An event loop: a thread multiplexing a number of connections using a selector
+     */
+    private class EventLoop extends Thread {
+        /**
+         * The selector used for all connections of this event loop
+         */
+        private Selector selector;
+        /**
+         * Connections waiting to be registered with the selector
+         */
+        private Queue<Connection> registrations = new ConcurrentLinkedQueue<Connection>();
+        /**
+         * Connections closed by other threads, whose decoders are released by the event loop
+         */
+        private Queue<Connection> closing = new ConcurrentLinkedQueue<Connection>();
+        /**
+         * Buffer shared by all connections of this event loop for reading data
+         */
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        /**
+         * Create an event loop
+         * @param index the index of the event loop, used for naming the thread
+         * @throws IOException if the selector could not be opened
+         */
+        EventLoop(int index) throws IOException {
+            super("CommunicatorServer-"+index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Hand a connection over to this event loop (can be called from any thread)
+         * @param connection the connection to register
+         */
+        void register(Connection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Have the event loop release the decoder of a connection closed by another thread,
+         * once the event loop is no longer using it
+         * @param connection the closed connection
+         */
+        void release(Connection connection) {
+            closing.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Release the decoders of connections closed by other threads
+         */
+        private void releaseClosed() {
+            Connection connection;
+            while((connection = closing.poll())!=null) connection.zeroCopyDecoder.close();
+        }
+
+        /**
+         * The behavior of the event loop thread
+         */
+        @Override
+        public void run() {
+            try {
+                while(!closed) {
+                    selector.select();
+                    Connection pending;
+                    while((pending = registrations.poll())!=null) pending.register(selector);
+                    releaseClosed();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if(!key.isValid()) continue;
+                        if(key.isAcceptable()) {
+                            try {
+                                accept();
+                            } catch(IOException exn) {
+                                // Failing to accept a client must not affect the connections of the loop
+                                if(!closed) PacketDispatcher.report(exn);
+                            }
+                            continue;
+                        }
+                        Connection connection = (Connection)key.attachment();
+                        try {
+                            if(key.isReadable()) connection.read(readBuffer);
+                            if(key.isValid() && key.isWritable()) connection.flush();
+                        } catch(IOException exn) {
+                            connection.close();
+                        } catch(CancelledKeyException exn) {
+                            // Closed by another thread while being processed
+                            connection.close();
+                        } catch(RuntimeException exn) {
+                            // Contain failures to the connection rather than all connections of the loop
+                            PacketDispatcher.report(exn);
+                            connection.close();
+                        }
+                    }
+                }
+                for(SelectionKey key: selector.keys())
+                    if(key.attachment() instanceof Connection) ((Connection)key.attachment()).close();
+                releaseClosed();
+                selector.close();
+            } catch (IOException e) {
+                if(!closed) throw new Error("IO Exception: "+e);
+            }
+        }
+    }
+
+    /**
+     * A single connection accepted by the server, owned by one event loop
+     */
+    private class Connection implements IPacketSender {
+        /**
+         * The channel of the connection
+         */
+        private SocketChannel channel;
+        /**
+         * The event loop owning the connection
+         */
+        private EventLoop loop;
+        /**
+         * The selection key of the connection, set when registered with the event loop
+         */
+        private SelectionKey key;
+        /**
+         * Decoder reassembling packets from the incoming data (when receiving by copying)
+         */
+        private PacketDecoder decoder;
+        /**
+         * Decoder providing views of packets in pooled buffers (when receiving without copying)
+         */
+        private ZeroCopyDecoder zeroCopyDecoder;
+        /**
+         * The dispatcher delivering the packets of this connection to its handler
+         */
+        private PacketDispatcher dispatcher = new PacketDispatcher(mode,format.getModel().size());
+        /**
+         * Outgoing data not yet written to the channel
+         */
+        private OutboundQueue outgoing = new OutboundQueue(MAX_PENDING_BYTES, true);
+        /**
+         * Whether the event loop is waiting for the channel to become writable
+         */
+        private boolean writeInterest = false;
+        /**
+         * Task writing batched packets after the delay given by the flush policy
+         */
+        private Runnable flushTask = new Runnable() {
+            @Override public void run() {
+                synchronized(Connection.this) {
+                    outgoing.flushed();
+                    try {
+                        if(channel.isOpen()) write();
+                    } catch (IOException e) {
+                        close();
+                    }
+                }
+            }
+        };
+
+        /**
+         * Create a connection and its handler
+         * @param channel the channel of the connection
+         * @param loop the event loop owning the connection
+         */
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            if(pool==null)
+                decoder = new PacketDecoder(format.getModel());
+            else
+                zeroCopyDecoder = new ZeroCopyDecoder(format.getModel(), pool);
+            dispatcher.addPacketHandler(factory.createHandler(this));
+            connectionCount.incrementAndGet();
+        }
+
+        /**
+         * Register the connection for reading with the selector of the owning event loop
+         * @param selector the selector of the event loop
+         */
+        void register(Selector selector) {
+            try {
+                synchronized(this) {
+                    key = channel.register(selector, SelectionKey.OP_READ, this);
+                    if(writeInterest) key.interestOps(SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+                }
+            } catch (ClosedChannelException e) {
+                close();
+            }
+        }
+
+        /**
+         * Read available data from the channel and dispatch all complete packets
+         * @param buffer the read buffer of the event loop
+         * @throws IOException if the data could not be read
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            if(zeroCopyDecoder!=null) buffer = zeroCopyDecoder.receiveBuffer();
+            else buffer.clear();
+            int count = channel.read(buffer);
+            if(count==-1) {
+                close();
+                return;
+            }
+            if(zeroCopyDecoder!=null) zeroCopyDecoder.received(count);
+            else decoder.append(buffer.array(), 0, count);
+            while(true) {
+                IncomingPacket packet;
+                try {
+                    packet = zeroCopyDecoder!=null ? zeroCopyDecoder.next() : decoder.next();
+                } catch(Error err) {
+                    // Malformed data: the stream cannot be resynchronized, so drop the connection
+                    PacketDispatcher.report(new IOException("Malformed data, closing connection: "+err.getMessage(), err));
+                    close();
+                    return;
+                }
+                if(packet==null) return;
+                try {
+                    dispatcher.dispatch(packet);
+                } catch(RuntimeException exn) {
+                    PacketDispatcher.report(exn); // a failing handler only loses the packet being handled
+                } catch(VirtualMachineError err) {
+                    throw err;
+                } catch(Error err) {
+                    PacketDispatcher.report(err);
+                }
+            }
+        }
+
+        /**
+         * Queue an outgoing packet for sending (the packet can be reused once this method returns),
+         * and write the queued data if required by the flush policy
+         * @param packet the packet to send
+         * @throws IOException if the connection is closed or too much data is already queued
+         */
+        @Override
+        public synchronized void send(OutgoingPacket packet) throws IOException {
+            if(!channel.isOpen()) throw new IOException("Connection closed");
+            packet.checkComplete();
+            if(!outgoing.fits(packet) && !writeInterest) write();
+            outgoing.add(packet, coalescedSends[packet.getID()]);
+            if(writeInterest) return; // written by the event loop once the channel is writable
+            FlushPolicy policy = flushPolicy;
+            if(outgoing.getPending()>=policy.getThreshold())
+                write();
+            else
+                outgoing.schedule(policy, flushTask);
+        }
+
+        /**
+         * Queue an outgoing packet as the response to a request, tagged with the correlation
+         * ID of the request
+         * @param request the request being answered
+         * @param response the packet to send
+         * @throws IOException if the connection is closed or too much data is already queued
+         */
+        @Override
+        public synchronized void reply(IncomingPacket request, OutgoingPacket response) throws IOException {
+            response.setCorrelation(request.getCorrelation(), true);
+            try {
+                send(response);
+            } finally {
+                response.setCorrelation(0, false);
+            }
+        }
+
+        /**
+         * Write queued outgoing data when the event loop finds the channel writable
+         * @throws IOException if the data could not be written
+         */
+        synchronized void flush() throws IOException {
+            write();
+        }
+
+        /**
+         * Write as much of the queued outgoing data as the channel accepts, and let the event
+         * loop wait for the channel to become writable if data remains
+         * @throws IOException if the data could not be written
+         */
+        private void write() throws IOException {
+            outgoing.write(channel);
+            boolean remaining = outgoing.getPending()>0;
+            if(remaining==writeInterest) return;
+            writeInterest = remaining;
+            if(key!=null) {
+                key.interestOps(remaining ? SelectionKey.OP_READ|SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                if(remaining) loop.selector.wakeup();
+            }
+        }
+
+        /**
+         * Create a new packetizer object with the packet format of the server
+         * @return a new packetizer using the packet format of the server
+         */
+        @Override
+        public Packetizer getPacketizer() {
+            return CommunicatorServer.this.getPacketizer();
+        }
+
+        /**
+         * Close the connection, discarding any queued outgoing data (can be called from any
+         * thread, the decoder is only released by the event loop since it may be reading)
+         */
+        synchronized void close() {
+            if(!channel.isOpen()) return;
+            if(key!=null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closing, nothing more to do
+            }
+            outgoing.clear();
+            if(zeroCopyDecoder!=null) {
+                if(Thread.currentThread()==loop) zeroCopyDecoder.close();
+                else loop.release(this);
+            }
+            connectionCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * A communicator exchanging packets with a single remote endpoint over UDP, for periodic
+ * packets where a lost packet is better than a late one.  Each datagram starts with a
+ * datagram header (magic number and sequence number) followed by one or more packets,
+ * framed as on a stream (including correlation headers for replies).  By default every
+ * packet is sent in its own datagram, a FlushPolicy can be set to batch packets into
+ * datagrams of at most the datagram size.
+ * 
+ * A received datagram is only delivered if all packets in it have a valid magic number,
+ * packet ID and length; invalid datagrams are dropped as a whole.  Datagrams arriving
+ * after a datagram with a higher sequence number are stale and are dropped as well, so
+ * packets are never delivered out of order.  Lost datagrams are not retransmitted.
+ * Packet handlers are used exactly as with a Communicator.
+ * 
+ * @author ups
+ */
+public class DatagramCommunicator implements Runnable, IPacketSender {
+
+    /**
+     * Magic number starting every datagram
+     */
+    static final byte DATAGRAM_MAGIC = 68;
+    /**
+     * Size of the datagram header: magic number (1 byte), sequence number (4 bytes)
+     */
+    static final int DATAGRAM_HEADER_SIZE = 1+4;
+    /**
+     * Default maximal size of a datagram holding a batch of packets, the payload of a UDP
+     * datagram that fits in a single Ethernet frame
+     */
+    public static final int DEFAULT_DATAGRAM_SIZE = 1472;
+    /**
+     * Maximal size of any datagram (packets larger than the datagram size are sent alone)
+     */
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    /**
+     * Number of sequence numbers before the last received one within which a datagram is
+     * considered stale; datagrams further behind are taken to be from a restarted sender
+     */
+    private static final int STALE_WINDOW = 1<<20;
+
+    /**
+     * The packet format (aka model) used for this communicator
+     */
+    private PacketFormat format;
+    /**
+     * The complete packet format model, for validating received packets
+     */
+    private List<PacketModel> model;
+    /**
+     * The dispatcher distributing packets to the packet handlers (observers)
+     */
+    private PacketDispatcher dispatcher;
+    /**
+     * The connected channel on which communication is done
+     */
+    private DatagramChannel channel;
+    /**
+     * The datagram being filled with packets, also used for locking the sending side
+     */
+    private ByteBuffer batch = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    /**
+     * Maximal size of a datagram holding a batch of packets
+     */
+    private int datagramSize = DEFAULT_DATAGRAM_SIZE;
+    /**
+     * The policy deciding when sent packets are written
+     */
+    private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+    /**
+     * Whether a task to send the current batch has been scheduled
+     */
+    private boolean scheduled = false;
+    /**
+     * Sequence number of the next datagram sent, starts at a random value so that the
+     * datagrams of a restarted sender are not taken to be stale
+     */
+    private int sendSequence = new Random().nextInt();
+    /**
+     * Sequence number of the last datagram delivered
+     */
+    private int receiveSequence;
+    /**
+     * Whether any datagram has been delivered
+     */
+    private boolean synchronizedSequence = false;
+    /**
+     * Number of datagrams delivered
+     */
+    private volatile long delivered = 0;
+    /**
+     * Number of datagrams dropped for being stale
+     */
+    private volatile long stale = 0;
+    /**
+     * Number of datagrams dropped for being invalid
+     */
+    private volatile long invalid = 0;
+    /**
+     * Number of datagrams that never arrived, according to the gaps in the sequence numbers
+     */
+    private volatile long lost = 0;
+    /**
+     * Task sending batched packets after the delay given by the flush policy
+     */
+    private Runnable flushTask = new Runnable() {
+        @Override public void run() {
+            try {
+                synchronized(batch) {
+                    scheduled = false;
+                    flush();
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to flush: "+e);
+            }
+        }
+    };
+
+    /**
+     * Create a new datagram communicator with the given packet format working over the given
+     * connected channel, and also starts the packet reception thread.
+     * @param format the packet format to use
+     * @param channel the datagram channel to use, must be connected and in blocking mode
+     */
+    public DatagramCommunicator(PacketFormat format, DatagramChannel channel) {
+        this(format,channel,ExecutionMode.PLATFORM);
+    }
+
+    /**
+     * Create a new datagram communicator with the given packet format working over the given
+     * connected channel, and also starts packet reception using the given execution mode.
+     * @param format the packet format to use
+     * @param channel the datagram channel to use, must be connected and in blocking mode
+     * @param mode the execution mode for packet reception and dispatching
+     */
+    public DatagramCommunicator(PacketFormat format, DatagramChannel channel, ExecutionMode mode) {
+        if(!channel.isConnected()) throw new Error("Datagram channel must be connected");
+        this.format = format;
+        this.model = format.getModel();
+        this.channel = channel;
+        this.dispatcher = new PacketDispatcher(mode,model.size());
+        if(mode==ExecutionMode.PLATFORM)
+            new Thread(this,"DatagramCommunicator").start();
+        else
+            VirtualThreads.executor().execute(this);
+    }
+
+    /**
+     * Add a packet handler (observer for packet reception)
+     * @param handler the handler, invoked when a new packet arrives
+     */
+    public void addPacketHandler(IPacketHandler handler) {
+        dispatcher.addPacketHandler(handler);
+    }
+
+    /**
+     * Add a packet handler for the packets of a single packet format
+     * @param packetName the name of the packet format
+     * @param handler the handler, invoked when a new packet of that format arrives
+     */
+    public void addPacketHandler(String packetName, IPacketHandler handler) {
+        addPacketHandler(format.type(packetName), handler);
+    }
+
+    /**
+     * Add a packet handler for the packets of a single packet type
+     * @param type the token of the packet format
+     * @param handler the handler, invoked when a new packet of that format arrives
+     */
+    public void addPacketHandler(PacketType type, IPacketHandler handler) {
+        dispatcher.addPacketHandler(type.getID(), handler);
+    }
+
+    /**
+     * Remove a packet handler, for all packets it was added for
+     * @param handler the handler to remove
+     */
+    public void removePacketHandler(IPacketHandler handler) {
+        dispatcher.removePacketHandler(handler);
+    }
+
+    /**
+     * Pass received packets to the handlers through a bounded queue (see Communicator)
+     * @param capacity the maximal number of packets waiting to be handled
+     * @param policy the policy used when a packet arrives while the queue is full
+     * @return the queue
+     */
+    public InboundQueue setInboundQueue(int capacity, OverflowPolicy policy) {
+        return dispatcher.setInboundQueue(capacity, policy);
+    }
+
+    /**
+     * Create a new packetizer object with the packet format of this communicator
+     * @return a new packetizer using the packet format of this communicator
+     */
+    @Override
+    public Packetizer getPacketizer() {
+        return new Packetizer(model);
+    }
+
+    /**
+     * Send an outgoing packet, in a datagram of its own or batched according to the flush
+     * policy (can be called from any thread)
+     * @param packet the packet to send
+     * @throws IOException if the packet could not be sent
+     */
+    @Override
+    public void send(OutgoingPacket packet) throws IOException {
+        packet.checkComplete();
+        int size = packet.getSize();
+        if(packet.getCorrelation()!=0) size += Packet.CORRELATION_SIZE;
+        if(DATAGRAM_HEADER_SIZE+size>MAX_DATAGRAM_SIZE) throw new IOException("Packet too large for a datagram");
+        synchronized(batch) {
+            if(batch.position()>0 && batch.position()+size>datagramSize) flush();
+            if(batch.position()==0) batch.position(DATAGRAM_HEADER_SIZE);
+            if(packet.getCorrelation()!=0) batch.put(packet.getCorrelationHeader());
+            batch.put(packet.getBuffer().array(), 0, packet.getSize());
+            if(batch.position()>=flushPolicy.getThreshold() || batch.position()>=datagramSize)
+                flush();
+            else if(!scheduled) {
+                scheduled = true;
+                Timers.scheduler().schedule(flushTask, flushPolicy.getDelay(), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Send a packet as the response to a request (can be called from any thread)
+     * @param request the request being answered
+     * @param response the packet to send
+     * @throws IOException if the packet could not be sent
+     */
+    @Override
+    public void reply(IncomingPacket request, OutgoingPacket response) throws IOException {
+        synchronized(batch) {
+            response.setCorrelation(request.getCorrelation(), true);
+            try {
+                send(response);
+            } finally {
+                response.setCorrelation(0, false);
+            }
+        }
+    }
+
+    /**
+     * Set the policy deciding when sent packets are written, any packets batched under
+     * the previous policy are sent first
+     * @param policy the flush policy
+     * @throws IOException if batched packets could not be sent
+     */
+    public void setFlushPolicy(FlushPolicy policy) throws IOException {
+        synchronized(batch) {
+            flush();
+            flushPolicy = policy;
+        }
+    }
+
+    /**
+     * Set the maximal size of a datagram holding a batch of packets
+     * @param size size in bytes, including the datagram header
+     * @throws IOException if batched packets could not be sent
+     */
+    public void setDatagramSize(int size) throws IOException {
+        if(size<=DATAGRAM_HEADER_SIZE+Packet.HEADER_SIZE || size>MAX_DATAGRAM_SIZE) throw new Error("Illegal datagram size: "+size);
+        synchronized(batch) {
+            flush();
+            datagramSize = size;
+        }
+    }
+
+    /**
+     * Send all batched packets as a datagram
+     * @throws IOException if the datagram could not be sent
+     */
+    public void flush() throws IOException {
+        synchronized(batch) {
+            if(batch.position()==0) return;
+            batch.put(0, DATAGRAM_MAGIC);
+            batch.putInt(1, sendSequence++);
+            batch.flip();
+            try {
+                channel.write(batch);
+            } catch (PortUnreachableException e) {
+                // Nobody listening (yet), the datagram is lost like any other
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Close the channel, which also ends packet reception
+     * @throws IOException if the channel could not be closed
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The behavior of the packet reception thread: receives datagrams and distributes the
+     * packets of every valid datagram to the observers
+     */
+    @Override
+    public void run() {
+        ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        try {
+            while(true) {
+                datagram.clear();
+                try {
+                    channel.receive(datagram);
+                } catch (PortUnreachableException e) {
+                    continue; // reported for an earlier send, nothing was received
+                }
+                deliver(datagram.array(), datagram.position());
+            }
+        } catch (ClosedChannelException e) {
+            System.out.println("Communication channel closed.");
+        } catch (IOException e) {
+            throw new Error("IO Exception: "+e);
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    /**
+     * Validate a received datagram and deliver its packets if valid and not stale
+     * @param bytes the bytes of the datagram
+     * @param length the length of the datagram
+     */
+    private void deliver(byte[] bytes, int length) {
+        if(length<DATAGRAM_HEADER_SIZE || bytes[0]!=DATAGRAM_MAGIC || !valid(bytes, length)) {
+            invalid++;
+            return;
+        }
+        int sequence = ((bytes[1]&0xff)<<24)|((bytes[2]&0xff)<<16)|((bytes[3]&0xff)<<8)|(bytes[4]&0xff);
+        if(synchronizedSequence) {
+            int distance = sequence-receiveSequence;
+            if(distance<=0 && distance>-STALE_WINDOW) {
+                stale++;
+                return;
+            }
+            if(distance>1 && distance<STALE_WINDOW) lost += distance-1;
+        }
+        receiveSequence = sequence;
+        synchronizedSequence = true;
+        delivered++;
+        int index = DATAGRAM_HEADER_SIZE;
+        while(index<length) {
+            int correlation = 0;
+            boolean response = bytes[index]==Packet.RESPONSE_MAGIC;
+            if(bytes[index]==Packet.REQUEST_MAGIC || response) {
+                correlation = ((bytes[index+1]&0xff)<<24)|((bytes[index+2]&0xff)<<16)|((bytes[index+3]&0xff)<<8)|(bytes[index+4]&0xff);
+                index += Packet.CORRELATION_SIZE;
+            }
+            IncomingPacket packet = new IncomingPacket(bytes, index, model);
+            packet.setCorrelation(correlation, response);
+            index += packet.getSize();
+            dispatcher.dispatch(packet);
+        }
+    }
+
+    /**
+     * Check that a datagram consists entirely of packets with valid magic numbers, packet
+     * IDs and lengths (matching the packet format unless it has variable-length fields)
+     * @param bytes the bytes of the datagram
+     * @param length the length of the datagram
+     * @return true if valid
+     */
+    private boolean valid(byte[] bytes, int length) {
+        int index = DATAGRAM_HEADER_SIZE;
+        if(index==length) return false;
+        while(index<length) {
+            if(bytes[index]==Packet.REQUEST_MAGIC || bytes[index]==Packet.RESPONSE_MAGIC) index += Packet.CORRELATION_SIZE;
+            if(index+Packet.HEADER_SIZE>length || bytes[index]!=Packet.MAGIC) return false;
+            int id = Packet.unsignedByte(bytes[index+1]);
+            if(id>=model.size()) return false;
+            int fields = ((bytes[index+2]&0xff)<<8)|(bytes[index+3]&0xff);
+            PacketModel packet = model.get(id);
+            if(packet.hasVariableFields() ? fields<packet.getFieldStorage() : fields!=packet.getFieldStorage()) return false;
+            index += Packet.HEADER_SIZE+fields;
+        }
+        return index==length;
+    }
+
+    /**
+     * Get the number of datagrams whose packets were delivered
+     * @return number of datagrams
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Get the number of datagrams dropped because a later datagram had already been delivered
+     * @return number of datagrams
+     */
+    public long getStale() {
+        return stale;
+    }
+
+    /**
+     * Get the number of datagrams dropped because they did not consist of valid packets
+     * @return number of datagrams
+     */
+    public long getInvalid() {
+        return invalid;
+    }
+
+    /**
+     * Get the number of datagrams that were skipped in the sequence of delivered datagrams
+     * (lost, or dropped by the network for arriving late)
+     * @return number of datagrams
+     */
+    public long getLost() {
+        return lost;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+/**
+ * The execution modes available for packet reception and handler dispatch.
+ * The virtual thread modes require a Java runtime with virtual threads, on older
+ * runtimes a shared pool of daemon platform threads is used instead.
+ * @author ups
+ */
+public enum ExecutionMode {
+    /**
+     * Reception runs in a dedicated platform thread and handlers are invoked in
+     * that same thread (the original behavior)
+     */
+    PLATFORM,
+    /**
+     * Reception runs in a virtual thread and handlers are invoked in that same thread,
+     * packets are hence handled one at a time in arrival order
+     */
+    VIRTUAL_INLINE,
+    /**
+     * Reception runs in a virtual thread and handlers are invoked in separate virtual
+     * threads, one packet at a time in arrival order: a slow handler delays later packets
+     * but never delays reception
+     */
+    VIRTUAL_ORDERED,
+    /**
+     * Reception runs in a virtual thread and each packet is handled in its own virtual
+     * thread, so packets may be handled concurrently and out of order
+     */
+    VIRTUAL_CONCURRENT;
+
+    /**
+     * Test whether handlers are invoked in the thread receiving the packets
+     * @return true if dispatch is done in the receiving thread
+     */
+    public boolean isInline() {
+        return this==PLATFORM || this==VIRTUAL_INLINE;
+    }
+}
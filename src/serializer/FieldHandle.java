@@ -0,0 +1,182 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+/**
+ * A field of a specific packet format, resolved in advance so that the data of the
+ * field can be accessed directly at a fixed offset, without any lookup by name.
+ * Obtained from PacketFormat.field or Packetizer.field, and used with the handle-based
+ * accessors of IncomingPacket.  A handle must only be used with packets of the packet
+ * format it was resolved for (this is not checked).
+ * @author ups
+ */
+public final class FieldHandle {
+
+    /**
+     * Name of the packet format containing the field
+     */
+    private final String packetName;
+    /**
+     * Name of the field
+     */
+    private final String fieldName;
+    /**
+     * ID of the packet format containing the field
+     */
+    final int packetID;
+    /**
+     * Offset (in bytes) of the field data, relative to packet start (i.e., including the header),
+     * for a variable-length field the offset of the first variable-length field
+     */
+    final int offset;
+    /**
+     * The textual representation of the enum values, null if not an enum field
+     */
+    final String[] names;
+    /**
+     * Whether the packet format is bit-packed (in which case the bit offset must be used)
+     */
+    final boolean packed;
+    /**
+     * Offset (in bits) of the field data, relative to packet start
+     */
+    final int bitOffset;
+    /**
+     * Number of bits occupied by the field
+     */
+    final int width;
+    /**
+     * Whether the field holds a signed integer
+     */
+    final boolean signed;
+    /**
+     * Index of the field among the variable-length fields of the packet, -1 if fixed-size
+     */
+    final int variable;
+    /**
+     * Size in bytes of each array element of a variable-length field, 0 for a varint
+     */
+    final int elementSize;
+
+    /**
+     * Create a field handle
+     * @param packetName name of the packet format
+     * @param fieldName name of the field
+     * @param packetID ID of the packet format
+     * @param offset offset of the field data relative to packet start
+     * @param names textual names of the enum values, or null if not an enum field
+     * @param packed whether the packet format is bit-packed
+     * @param bitOffset offset in bits of the field data relative to packet start
+     * @param width number of bits occupied by the field
+     * @param signed whether the field holds a signed integer
+     */
+    FieldHandle(String packetName, String fieldName, int packetID, int offset, String[] names,
+            boolean packed, int bitOffset, int width, boolean signed) {
+        this.packetName = packetName;
+        this.fieldName = fieldName;
+        this.packetID = packetID;
+        this.offset = offset;
+        this.names = names;
+        this.packed = packed;
+        this.bitOffset = bitOffset;
+        this.width = width;
+        this.signed = signed;
+        this.variable = -1;
+        this.elementSize = 0;
+    }
+
+    /**
+     * Create a field handle for a variable-length field
+     * @param packetName name of the packet format
+     * @param fieldName name of the field
+     * @param packetID ID of the packet format
+     * @param offset offset of the first variable-length field relative to packet start
+     * @param variable index of the field among the variable-length fields of the packet
+     * @param elementSize size in bytes of each array element, 0 for a varint
+     */
+    FieldHandle(String packetName, String fieldName, int packetID, int offset, int variable, int elementSize) {
+        this.packetName = packetName;
+        this.fieldName = fieldName;
+        this.packetID = packetID;
+        this.offset = offset;
+        this.names = null;
+        this.packed = false;
+        this.bitOffset = -1;
+        this.width = -1;
+        this.signed = false;
+        this.variable = variable;
+        this.elementSize = elementSize;
+    }
+
+    /**
+     * Get the name of the field
+     * @return field name
+     */
+    public String getFieldName() { return fieldName; }
+
+    /**
+     * Get the ID of the packet format containing the field
+     * @return packet ID
+     */
+    public int getPacketID() { return packetID; }
+
+    /**
+     * Get the offset of the field data
+     * @return offset in bytes, relative to packet start
+     */
+    public int getOffset() { return offset; }
+
+    /**
+     * Get the offset of the field data in bits
+     * @return offset in bits, relative to packet start
+     */
+    public int getBitOffset() { return bitOffset; }
+
+    /**
+     * Get the number of bits occupied by the field
+     * @return width in bits
+     */
+    public int getWidth() { return width; }
+
+    /**
+     * Whether the field is a variable-length field
+     * @return true if variable-length
+     */
+    public boolean isVariable() { return variable>=0; }
+
+    /**
+     * For debugging
+     */
+    public String toString() {
+        if(variable>=0) return "FieldHandle["+packetName+"."+fieldName+"@"+offset+"+"+variable+"]";
+        if(packed) return "FieldHandle["+packetName+"."+fieldName+"@"+bitOffset+":"+width+"]";
+        return "FieldHandle["+packetName+"."+fieldName+"@"+offset+"]";
+    }
+}
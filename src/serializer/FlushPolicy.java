@@ -0,0 +1,123 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+/**
+ * Policy deciding when packets queued for sending are written to the network.  Batching
+ * several packets into a single write greatly reduces the number of system calls (and
+ * network segments) for protocols using many small packets, at the cost of latency.
+ * @author ups
+ */
+public final class FlushPolicy {
+
+    /**
+     * Write every packet as soon as it is sent (no batching)
+     */
+    public static final FlushPolicy IMMEDIATE = new FlushPolicy(0,0);
+    /**
+     * Default upper bound on the time a packet is delayed by a size threshold policy, in microseconds
+     */
+    public static final long DEFAULT_MAX_DELAY = 1000;
+
+    /**
+     * Number of queued bytes that triggers a write
+     */
+    private final int threshold;
+    /**
+     * Maximal time that a queued packet waits before being written, in nanoseconds
+     */
+    private final long delay;
+
+    /**
+     * Create a flush policy
+     * @param threshold number of queued bytes that triggers a write
+     * @param delay maximal time that a queued packet waits, in nanoseconds
+     */
+    private FlushPolicy(int threshold, long delay) {
+        this.threshold = threshold;
+        this.delay = delay;
+    }
+
+    /**
+     * Policy writing queued packets once at least the given number of bytes are queued,
+     * or after the default maximal delay
+     * @param bytes the number of queued bytes that triggers a write
+     * @return the flush policy
+     */
+    public static FlushPolicy sizeThreshold(int bytes) {
+        return sizeThreshold(bytes,DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Policy writing queued packets once at least the given number of bytes are queued,
+     * or after the given maximal delay
+     * @param bytes the number of queued bytes that triggers a write
+     * @param maxDelay the maximal time that a packet is delayed, in microseconds
+     * @return the flush policy
+     */
+    public static FlushPolicy sizeThreshold(int bytes, long maxDelay) {
+        if(bytes<1 || maxDelay<1) throw new Error("Illegal flush policy");
+        return new FlushPolicy(bytes,maxDelay*1000);
+    }
+
+    /**
+     * Policy writing all packets queued during a short delay after the first one is queued
+     * @param delay the time that the first packet of a batch is delayed, in microseconds
+     * @return the flush policy
+     */
+    public static FlushPolicy delay(long delay) {
+        if(delay<1) throw new Error("Illegal flush policy");
+        return new FlushPolicy(Integer.MAX_VALUE,delay*1000);
+    }
+
+    /**
+     * Test whether packets are written as soon as they are sent
+     * @return true if the policy does not batch packets
+     */
+    public boolean isImmediate() {
+        return threshold==0;
+    }
+
+    /**
+     * Get the number of queued bytes that triggers a write
+     * @return number of bytes
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Get the maximal time that a queued packet waits before being written
+     * @return delay in nanoseconds
+     */
+    public long getDelay() {
+        return delay;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.util.List;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * Superclass for all packet codecs generated by the PacketCodecGenerator.  Verifies that
+ * the packet format used at runtime has the layout that the code was generated from, and
+ * provides pooled outgoing packets for the generated encoding methods.
+ * @author ups
+ */
+public abstract class GeneratedCodec {
+
+    /**
+     * Maximal number of free packets retained per packet format
+     */
+    private static final int POOL_SIZE = 16;
+
+    /**
+     * Pools of recycled outgoing packets, indexed by packet ID
+     */
+    private OutgoingPacketPool[] pools;
+
+    /**
+     * Create codec for the given packet format, checking that it matches the generated code
+     * @param format the packet format used at runtime
+     * @param packetNames the names of the packets, indexed by packet ID, when the code was generated
+     * @param fieldStorage the size of the packet data, indexed by packet ID, when the code was generated
+     */
+    protected GeneratedCodec(PacketFormat format, String[] packetNames, int[] fieldStorage) {
+        List<PacketModel> model = format.getModel();
+        if(model.size()!=packetNames.length) throw new Error("Generated codec does not match packet format");
+        pools = new OutgoingPacketPool[model.size()];
+        for(int id=0; id<pools.length; id++) {
+            PacketModel packet = model.get(id);
+            if(!packet.getName().equals(packetNames[id]) || packet.getFieldStorage()!=fieldStorage[id])
+                throw new Error("Generated codec does not match packet format: "+packetNames[id]);
+            pools[id] = new OutgoingPacketPool(id,packet,POOL_SIZE);
+        }
+    }
+
+    /**
+     * Get a recycled outgoing packet with the header filled in
+     * @param id the ID of the packet format
+     * @return a pooled packet, must be released once sent
+     */
+    protected OutgoingPacket acquire(int id) {
+        return pools[id].acquire();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values (such as times in nanoseconds or sizes in bytes)
+ * with a fixed relative precision: values are counted in buckets that are linear within
+ * each power of two (32 buckets per power of two), so any value is represented with an
+ * error of at most about 3% over the entire range of long values.  Recording a value
+ * takes no locks and allocates nothing, and can be done from any number of threads.
+ * @author ups
+ */
+public final class Histogram {
+
+    /**
+     * Number of bits of a value used for selecting the bucket within a power of two
+     */
+    private static final int SUB_BITS = 5;
+    /**
+     * Number of buckets per power of two
+     */
+    private static final int SUB_COUNT = 1<<SUB_BITS;
+    /**
+     * Total number of buckets, covering all non-negative long values
+     */
+    private static final int BUCKETS = (64-SUB_BITS)*SUB_COUNT;
+
+    /**
+     * The number of values recorded in each bucket
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /**
+     * Total number of values recorded
+     */
+    private final AtomicLong count = new AtomicLong();
+    /**
+     * Sum of all values recorded
+     */
+    private final AtomicLong sum = new AtomicLong();
+    /**
+     * Largest value recorded
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Get the bucket holding a value
+     * @param value the value, non-negative
+     * @return index of the bucket
+     */
+    private static int bucket(long value) {
+        if(value<SUB_COUNT) return (int)value;
+        int exponent = 63-Long.numberOfLeadingZeros(value);
+        int sub = (int)(value>>>(exponent-SUB_BITS))&(SUB_COUNT-1);
+        return (exponent-SUB_BITS+1)*SUB_COUNT+sub;
+    }
+
+    /**
+     * Get the smallest value held by a bucket
+     * @param bucket index of the bucket
+     * @return the value
+     */
+    private static long lowest(int bucket) {
+        if(bucket<SUB_COUNT) return bucket;
+        int exponent = bucket/SUB_COUNT+SUB_BITS-1;
+        return ((long)(SUB_COUNT+bucket%SUB_COUNT))<<(exponent-SUB_BITS);
+    }
+
+    /**
+     * Record a value, negative values are recorded as 0
+     * @param value the value to record
+     */
+    public void record(long value) {
+        if(value<0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long largest;
+        while(value>(largest = max.get()) && !max.compareAndSet(largest, value));
+    }
+
+    /**
+     * Get the number of values recorded
+     * @return number of values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the largest value recorded
+     * @return the value, 0 if none recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the mean of the values recorded
+     * @return the mean, 0 if none recorded
+     */
+    public double getMean() {
+        long n = count.get();
+        return n==0 ? 0 : (double)sum.get()/n;
+    }
+
+    /**
+     * Get the value below which (or at which) a given percentage of the recorded values
+     * lie, as the largest value of the bucket in which that percentile falls
+     * @param percentile the percentage, between 0 and 100
+     * @return the value, 0 if none recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for(int i=0; i<BUCKETS; i++) total += counts.get(i);
+        if(total==0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(Math.min(100, Math.max(0, percentile))/100*total));
+        long seen = 0;
+        for(int i=0; i<BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen>=rank) return i+1<BUCKETS ? Math.min(lowest(i+1)-1, getMax()) : getMax();
+        }
+        return getMax();
+    }
+
+    /**
+     * Remove all recorded values (values recorded concurrently may be partially removed)
+     */
+    public void reset() {
+        for(int i=0; i<BUCKETS; i++) counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Summary of the recorded values
+     */
+    @Override
+    public String toString() {
+        return "count="+getCount()+" mean="+(long)getMean()+" p50="+getValueAtPercentile(50)+
+                " p99="+getValueAtPercentile(99)+" p99.9="+getValueAtPercentile(99.9)+" max="+getMax();
+    }
+}
@@ -32,6 +32,7 @@ package serializer;
 import serializer.PacketFormat.BooleanFieldModel;
 import serializer.PacketFormat.EnumFieldModel;
 import serializer.PacketFormat.IntFieldModel;
+import serializer.PacketFormat.VariableFieldModel;
 
 /**
  * Helper interface: dispatch over the subtype of a given FieldModel object
@@ -42,4 +43,5 @@ public interface IFieldModelDispatch {
     public void dispatchIntField(IntFieldModel model);
     public void dispatchBooleanField(BooleanFieldModel model);
     public void dispatchEnumField(EnumFieldModel model);
+    public void dispatchVariableField(VariableFieldModel model);
 }
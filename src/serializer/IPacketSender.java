@@ -0,0 +1,59 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.io.IOException;
+
+/**
+ * Interface implemented by any endpoint that packets can be sent through, such
+ * as a Communicator or a single connection of a CommunicatorServer
+ * @author ups
+ */
+public interface IPacketSender {
+    /**
+     * Send an outgoing packet to the remote endpoint
+     * @param packet the packet to send
+     * @throws IOException if the packet could not be sent
+     */
+    public void send(OutgoingPacket packet) throws IOException;
+    /**
+     * Send an outgoing packet as the response to a request, tagged with the correlation ID
+     * of the request (sent as an ordinary packet if the request is not correlated)
+     * @param request the request being answered
+     * @param response the packet to send
+     * @throws IOException if the packet could not be sent
+     */
+    public void reply(IncomingPacket request, OutgoingPacket response) throws IOException;
+    /**
+     * Create a new packetizer object with the packet format used by this endpoint
+     * @return a new packetizer using the packet format of this endpoint
+     */
+    public Packetizer getPacketizer();
+}
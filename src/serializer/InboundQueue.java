@@ -0,0 +1,243 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+/**
+ * A bounded queue of received packets waiting to be handled, decoupling reception from
+ * slow packet handlers.  What happens when a packet arrives while the queue is full is
+ * decided by an OverflowPolicy.  The queue keeps statistics on its depth and on discarded
+ * packets, so that overload can be monitored.  Discarded pooled packets are released.
+ * @author ups
+ */
+public final class InboundQueue {
+
+    /**
+     * The queued packets, a ring buffer
+     */
+    private IncomingPacket[] packets;
+    /**
+     * Index of the oldest queued packet
+     */
+    private int head = 0;
+    /**
+     * Number of queued packets
+     */
+    private int count = 0;
+    /**
+     * The policy used when the queue is full
+     */
+    private OverflowPolicy policy;
+    /**
+     * Whether the queue has been closed (no further packets are accepted)
+     */
+    private boolean closed = false;
+    /**
+     * Largest number of packets queued at any time
+     */
+    private int maxDepth = 0;
+    /**
+     * Number of packets taken from the queue for handling
+     */
+    private long delivered = 0;
+    /**
+     * Number of packets discarded
+     */
+    private long dropped = 0;
+    /**
+     * Number of packets replaced by a newer packet of the same format
+     */
+    private long coalesced = 0;
+    /**
+     * Number of times reception had to wait for room in the queue
+     */
+    private long blocked = 0;
+
+    /**
+     * Create a bounded inbound queue
+     * @param capacity the maximal number of queued packets
+     * @param policy the policy used when the queue is full
+     */
+    InboundQueue(int capacity, OverflowPolicy policy) {
+        if(capacity<1) throw new Error("Illegal queue capacity: "+capacity);
+        this.packets = new IncomingPacket[capacity];
+        this.policy = policy;
+    }
+
+    /**
+     * Add a received packet to the queue, taking over the lease of the caller on the packet
+     * @param packet the packet
+     */
+    synchronized void put(IncomingPacket packet) {
+        if(closed) {
+            dropped++;
+            packet.release();
+            return;
+        }
+        if(count==packets.length) {
+            switch(policy) {
+            case BLOCK:
+                blocked++;
+                while(count==packets.length && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new Error("Interrupted");
+                    }
+                }
+                if(closed) {
+                    dropped++;
+                    packet.release();
+                    return;
+                }
+                break;
+            case DROP_NEWEST:
+                dropped++;
+                packet.release();
+                return;
+            case COALESCE:
+                for(int i=count-1; i>=0; i--) {
+                    int index = (head+i)%packets.length;
+                    if(packets[index].getID()==packet.getID()) {
+                        coalesced++;
+                        packets[index].release();
+                        packets[index] = packet;
+                        return;
+                    }
+                }
+                dropOldest(); // no packet to replace
+                break;
+            case DROP_OLDEST:
+                dropOldest();
+                break;
+            }
+        }
+        packets[(head+count)%packets.length] = packet;
+        count++;
+        if(count>maxDepth) maxDepth = count;
+        notifyAll();
+    }
+
+    /**
+     * Discard the oldest queued packet to make room for a new one
+     */
+    private void dropOldest() {
+        dropped++;
+        packets[head].release();
+        packets[head] = null;
+        head = (head+1)%packets.length;
+        count--;
+    }
+
+    /**
+     * Remove the oldest packet from the queue, waiting until a packet is available
+     * @return the packet (leased to the caller), or null if the queue has been closed and is empty
+     */
+    synchronized IncomingPacket take() {
+        while(count==0) {
+            if(closed) return null;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new Error("Interrupted");
+            }
+        }
+        IncomingPacket packet = packets[head];
+        packets[head] = null;
+        head = (head+1)%packets.length;
+        count--;
+        delivered++;
+        notifyAll();
+        return packet;
+    }
+
+    /**
+     * Close the queue: packets already queued are still handled, later packets are discarded
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Get the maximal number of queued packets
+     * @return the capacity
+     */
+    public int getCapacity() { return packets.length; }
+
+    /**
+     * Get the policy used when the queue is full
+     * @return the overflow policy
+     */
+    public OverflowPolicy getPolicy() { return policy; }
+
+    /**
+     * Get the number of packets currently waiting to be handled
+     * @return queue depth
+     */
+    public synchronized int getDepth() { return count; }
+
+    /**
+     * Get the largest number of packets queued at any time
+     * @return maximal queue depth
+     */
+    public synchronized int getMaxDepth() { return maxDepth; }
+
+    /**
+     * Get the number of packets taken from the queue for handling
+     * @return number of packets
+     */
+    public synchronized long getDelivered() { return delivered; }
+
+    /**
+     * Get the number of packets discarded because the queue was full (or closed)
+     * @return number of packets
+     */
+    public synchronized long getDropped() { return dropped; }
+
+    /**
+     * Get the number of packets replaced by a newer packet of the same format
+     * @return number of packets
+     */
+    public synchronized long getCoalesced() { return coalesced; }
+
+    /**
+     * Get the number of times reception had to wait for room in the queue
+     * @return number of waits
+     */
+    public synchronized long getBlocked() { return blocked; }
+
+    /**
+     * For debugging
+     */
+    public synchronized String toString() {
+        return "InboundQueue[depth="+count+"/"+packets.length+", max="+maxDepth+", delivered="+delivered
+                +", dropped="+dropped+", coalesced="+coalesced+", blocked="+blocked+"]";
+    }
+}
@@ -30,19 +30,55 @@ either expressed or implied, of the University of Southern Denmark.
 package serializer;
 
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import serializer.PacketFormat.EnumFieldModel;
+import serializer.PacketFormat.FieldModel;
 import serializer.PacketFormat.PacketModel;
+import serializer.PacketFormat.VariableFieldModel;
 
 /**
  * An incoming packet: a Packet specialized for reading data from a byte
  * buffer.  First verifies that the packet makes sense and then make the
  * data available on a field-name basis according to the packet format model. 
+ * 
+ * Packets received using a PacketBufferPool are leased views of a shared receive
+ * buffer rather than copies: such a packet is only valid while it is being handled,
+ * a handler that needs the packet afterwards must call retain and later release it.
+ * For packets not obtained from a pool, retain and release have no effect.
+ * 
+ * Variable-length arrays are returned as read-only views of the packet data, without
+ * copying or boxing the elements; for a pooled packet the views are only valid as long
+ * as the packet itself.
  * @author ups
  */
 public class IncomingPacket extends Packet {
 
+    /**
+     * The pool that this packet is recycled to, null if not pooled
+     */
+    private PacketBufferPool pool;
+    /**
+     * The receive buffer that this packet is a view of, null if not pooled
+     */
+    private ReceiveBuffer source;
+    /**
+     * Number of leases held on a pooled packet
+     */
+    private AtomicInteger references;
+
+    /**
+     * Create an empty pooled packet, must be bound to a receive buffer before use
+     * @param pool the pool that the packet is recycled to
+     */
+    IncomingPacket(PacketBufferPool pool) {
+        this.pool = pool;
+        this.references = new AtomicInteger();
+    }
+
     /**
      * Create a new incoming packet using the given bytes and complete set of packet formats.
      * The packet ID value is an index into the list of packet models, an error is signaled
@@ -51,15 +87,81 @@ public class IncomingPacket extends Packet {
      * @param completeModel the set of models, one of which must describe this packet
      */
     public IncomingPacket(byte[] bytes, List<PacketModel> completeModel) {
-        ByteBuffer initialBuffer = ByteBuffer.wrap(bytes);
+        this(bytes,0,completeModel);
+    }
+
+    /**
+     * Create a new incoming packet from the bytes starting at the given offset, using
+     * the complete set of packet formats.
+     * @param bytes the raw incoming bytes (excess bytes will be ignored)
+     * @param offset the index of the first byte of the packet
+     * @param completeModel the set of models, one of which must describe this packet
+     */
+    public IncomingPacket(byte[] bytes, int offset, List<PacketModel> completeModel) {
+        ByteBuffer initialBuffer = ByteBuffer.wrap(bytes, offset, bytes.length-offset);
         if(initialBuffer.get()!=MAGIC) throw new Error("Illegal packet");
         id = initialBuffer.get();
-        if(id>=completeModel.size()) throw new Error("Illegal packet ID");
-        short len = initialBuffer.getShort();
+        if(unsignedByte(id)>=completeModel.size()) throw new Error("Illegal packet ID");
+        int len = ((int)initialBuffer.getShort())&0xffff;
         byte[] realBuffer = new byte[HEADER_SIZE+len];
-        System.arraycopy(bytes, 0, realBuffer, 0, realBuffer.length);
+        System.arraycopy(bytes, offset, realBuffer, 0, realBuffer.length);
         buffer = ByteBuffer.wrap(realBuffer);
-        this.model = completeModel.get(id);
+        this.model = completeModel.get(unsignedByte(id));
+    }
+
+    /**
+     * Bind a pooled packet to the packet stored at the given index of a receive buffer
+     * (the magic number and length are assumed to be verified already)
+     * @param source the receive buffer holding the packet
+     * @param index the index of the first byte of the packet
+     * @param completeModel the set of models, one of which must describe this packet
+     */
+    void wrap(ReceiveBuffer source, int index, List<PacketModel> completeModel) {
+        id = source.buffer.get(index+1);
+        if(unsignedByte(id)>=completeModel.size()) throw new Error("Illegal packet ID");
+        source.retain();
+        this.source = source;
+        this.buffer = source.buffer;
+        this.base = index;
+        this.model = completeModel.get(unsignedByte(id));
+        references.set(1);
+    }
+
+    /**
+     * Bind an unpooled packet to the packet stored at the given index of a buffer, without
+     * copying (the magic number and length are assumed to be verified already)
+     * @param buffer the buffer holding the packet
+     * @param index the index of the first byte of the packet
+     * @param completeModel the set of models, one of which must describe this packet
+     */
+    void view(ByteBuffer buffer, int index, List<PacketModel> completeModel) {
+        id = buffer.get(index+1);
+        if(unsignedByte(id)>=completeModel.size()) throw new Error("Illegal packet ID");
+        this.buffer = buffer;
+        this.base = index;
+        this.model = completeModel.get(unsignedByte(id));
+        this.correlation = 0;
+        this.response = false;
+    }
+
+    /**
+     * Take an additional lease on this packet, keeping its data valid until released
+     */
+    public void retain() {
+        if(pool!=null) references.incrementAndGet();
+    }
+
+    /**
+     * Give up a lease on this packet, the packet must not be used after its last lease
+     * has been released
+     */
+    public void release() {
+        if(pool==null || references.decrementAndGet()>0) return;
+        ReceiveBuffer released = source;
+        source = null;
+        buffer = null;
+        released.release();
+        pool.recycle(this);
     }
 
     /**
@@ -68,7 +170,17 @@ public class IncomingPacket extends Packet {
      * @return the 16-bit unsigned integer stored at that data segment
      */
     public int get_uint16(String fieldName) {
-        return ((int)buffer.getShort(HEADER_SIZE+model.fieldOffset(fieldName)))&0xffff;
+        return read(model.fieldLayout(fieldName));
+    }
+
+    /**
+     * Get an integer of the given name (must be described by packet format), signed
+     * fields are sign extended
+     * @param fieldName the name identifying the data segment
+     * @return the integer stored at that data segment
+     */
+    public int get_int(String fieldName) {
+        return read(model.fieldLayout(fieldName));
     }
     
     /**
@@ -77,7 +189,7 @@ public class IncomingPacket extends Packet {
      * @return the boolean stored at that data segment
      */
     public boolean get_boolean(String fieldName) {
-    	return buffer.get(HEADER_SIZE+model.fieldOffset(fieldName))!=0;
+    	return read(model.fieldLayout(fieldName))!=0;
     }
 
     /**
@@ -86,9 +198,274 @@ public class IncomingPacket extends Packet {
      * @return the textual representation of the enum value stored at that data segment
      */
     public String get_enum(String fieldName) {
-        byte value = buffer.get(HEADER_SIZE+model.fieldOffset(fieldName));
-        EnumFieldModel m = (EnumFieldModel)model.getField(fieldName);
-        return m.getNames().get(((int)value)&0xff);
+        EnumFieldModel m = (EnumFieldModel)model.fieldLayout(fieldName);
+        return m.getNames().get(read(m));
+    }
+
+    /**
+     * Read the value of a field according to the layout of the packet format
+     * @param field the model of the field, with offsets computed
+     * @return the value, sign extended if the field is signed
+     */
+    private int read(FieldModel field) {
+        if(model.isPacked()) {
+            int bitOffset = HEADER_SIZE*8+field.getBitOffset();
+            if(field.isSigned()) return BitField.readSigned(buffer,base,bitOffset,field.getBitWidth());
+            return BitField.read(buffer,base,bitOffset,field.getBitWidth());
+        }
+        int index = base+HEADER_SIZE+field.getOffset();
+        switch(field.getBitWidth()) {
+        case 8: return field.isSigned() ? buffer.get(index) : ((int)buffer.get(index))&0xff;
+        case 16: return field.isSigned() ? buffer.getShort(index) : ((int)buffer.getShort(index))&0xffff;
+        default: return buffer.getInt(index);
+        }
+    }
+
+    /**
+     * Get an unsigned 16-bit integer using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return the 16-bit unsigned integer stored in the field
+     */
+    public int get_uint16(FieldHandle field) {
+        if(field.packed) return BitField.read(buffer,base,field.bitOffset,field.width);
+        return ((int)buffer.getShort(base+field.offset))&0xffff;
+    }
+
+    /**
+     * Get an integer of any width using a precompiled field handle, signed fields are
+     * sign extended
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return the integer stored in the field
+     */
+    public int get_int(FieldHandle field) {
+        if(field.packed) {
+            if(field.signed) return BitField.readSigned(buffer,base,field.bitOffset,field.width);
+            return BitField.read(buffer,base,field.bitOffset,field.width);
+        }
+        switch(field.width) {
+        case 8: return field.signed ? buffer.get(base+field.offset) : ((int)buffer.get(base+field.offset))&0xff;
+        case 16: return field.signed ? buffer.getShort(base+field.offset) : ((int)buffer.getShort(base+field.offset))&0xffff;
+        default: return buffer.getInt(base+field.offset);
+        }
+    }
+
+    /**
+     * Get a boolean value using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return the boolean stored in the field
+     */
+    public boolean get_boolean(FieldHandle field) {
+        if(field.packed) return BitField.read(buffer,base,field.bitOffset,1)!=0;
+        return buffer.get(base+field.offset)!=0;
+    }
+
+    /**
+     * Get the ordinal of an enum value using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return the index of the enum value stored in the field
+     */
+    public int get_enumOrdinal(FieldHandle field) {
+        if(field.packed) return BitField.read(buffer,base,field.bitOffset,field.width);
+        return ((int)buffer.get(base+field.offset))&0xff;
+    }
+
+    /**
+     * The textual representation of an enum value using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return the textual representation of the enum value stored in the field
+     */
+    public String get_enum(FieldHandle field) {
+        return field.names[get_enumOrdinal(field)];
+    }
+
+    /**
+     * Get the model of a variable-length field of the given name
+     * @param fieldName the name identifying the data segment
+     * @return the model of the field
+     */
+    private VariableFieldModel variable(String fieldName) {
+        FieldModel field = model.fieldLayout(fieldName);
+        if(!(field instanceof VariableFieldModel)) throw new Error("Not a variable-length field: "+fieldName);
+        return (VariableFieldModel)field;
+    }
+
+    /**
+     * Find the start of a variable-length field by skipping the variable-length fields
+     * preceding it
+     * @param start index of the first variable-length field in the buffer
+     * @param variable index of the field among the variable-length fields of the packet
+     * @return index of the field in the buffer
+     */
+    private int locate(int start, int variable) {
+        int index = start;
+        int end = base+getSize();
+        for(int i=0; i<variable; i++) {
+            int elementSize = model.variableFields.get(i).getElementSize();
+            if(elementSize==0) {
+                int length = 0;
+                do {
+                    if(index>=end || ++length>5) throw new Error("Illegal packet");
+                } while((buffer.get(index++)&0x80)!=0);
+            } else {
+                if(index+2>end) throw new Error("Illegal packet");
+                index += 2+elementSize*(((int)buffer.getShort(index))&0xffff);
+                if(index>end) throw new Error("Illegal packet");
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Get a view of the elements of a length-prefixed array
+     * @param offset offset of the first variable-length field relative to packet start
+     * @param variable index of the field among the variable-length fields of the packet
+     * @param elementSize size of the elements of the field
+     * @param expected size of the elements requested
+     * @param fieldName the name of the field
+     * @return read-only view of the bytes of the elements
+     */
+    private ByteBuffer array(int offset, int variable, int elementSize, int expected, String fieldName) {
+        if(variable<0 || elementSize!=expected) throw new Error("Field type mismatch: "+fieldName);
+        int index = locate(base+offset, variable);
+        if(index+2>base+getSize()) throw new Error("Illegal packet");
+        int start = index+2;
+        int end = start+elementSize*(((int)buffer.getShort(index))&0xffff);
+        if(end>base+getSize()) throw new Error("Illegal packet");
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.limit(end);
+        view.position(start);
+        return view.slice();
+    }
+
+    /**
+     * Decode a varint
+     * @param offset offset of the first variable-length field relative to packet start
+     * @param variable index of the field among the variable-length fields of the packet
+     * @param elementSize size of the elements of the field (0 for a varint)
+     * @param fieldName the name of the field
+     * @return the decoded value
+     */
+    private int varint(int offset, int variable, int elementSize, String fieldName) {
+        if(variable<0 || elementSize!=0) throw new Error("Field type mismatch: "+fieldName);
+        int index = locate(base+offset, variable);
+        int end = base+getSize();
+        int value = 0;
+        for(int shift=0; shift<35; shift+=7) {
+            if(index>=end) break;
+            int b = buffer.get(index++);
+            value |= (b&0x7f)<<shift;
+            if((b&0x80)==0) return value;
+        }
+        throw new Error("Illegal packet");
+    }
+
+    /**
+     * Get an array of unsigned 16-bit integers of the given name (must be described by packet format)
+     * @param fieldName the name identifying the data segment
+     * @return read-only view of the elements, mask with 0xffff to obtain unsigned values
+     */
+    public ShortBuffer get_uint16_array(String fieldName) {
+        VariableFieldModel m = variable(fieldName);
+        return array(HEADER_SIZE+m.getOffset(),m.getIndex(),m.getElementSize(),2,fieldName).asShortBuffer();
+    }
+
+    /**
+     * Get an array of 32-bit integers of the given name (must be described by packet format)
+     * @param fieldName the name identifying the data segment
+     * @return read-only view of the elements
+     */
+    public IntBuffer get_int32_array(String fieldName) {
+        VariableFieldModel m = variable(fieldName);
+        return array(HEADER_SIZE+m.getOffset(),m.getIndex(),m.getElementSize(),4,fieldName).asIntBuffer();
+    }
+
+    /**
+     * Get a byte sequence of the given name (must be described by packet format)
+     * @param fieldName the name identifying the data segment
+     * @return read-only view of the bytes
+     */
+    public ByteBuffer get_bytes(String fieldName) {
+        VariableFieldModel m = variable(fieldName);
+        return array(HEADER_SIZE+m.getOffset(),m.getIndex(),m.getElementSize(),1,fieldName);
+    }
+
+    /**
+     * Get a varint-encoded unsigned integer of the given name (must be described by packet format)
+     * @param fieldName the name identifying the data segment
+     * @return the integer stored at that data segment
+     */
+    public int get_varint(String fieldName) {
+        VariableFieldModel m = variable(fieldName);
+        return varint(HEADER_SIZE+m.getOffset(),m.getIndex(),m.getElementSize(),fieldName);
+    }
+
+    /**
+     * Get the number of elements of an array of the given name (must be described by packet format)
+     * @param fieldName the name identifying the data segment
+     * @return the number of elements
+     */
+    public int get_length(String fieldName) {
+        VariableFieldModel m = variable(fieldName);
+        if(m.isVarint()) throw new Error("Not an array field: "+fieldName);
+        return length(HEADER_SIZE+m.getOffset(),m.getIndex());
+    }
+
+    /**
+     * Get the number of elements of an array using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return the number of elements
+     */
+    public int get_length(FieldHandle field) {
+        if(field.variable<0 || field.elementSize==0) throw new Error("Not an array field: "+field.getFieldName());
+        return length(field.offset,field.variable);
+    }
+
+    /**
+     * Read the length prefix of an array
+     * @param offset offset of the first variable-length field relative to packet start
+     * @param variable index of the field among the variable-length fields of the packet
+     * @return the number of elements
+     */
+    private int length(int offset, int variable) {
+        int index = locate(base+offset, variable);
+        if(index+2>base+getSize()) throw new Error("Illegal packet");
+        return ((int)buffer.getShort(index))&0xffff;
+    }
+
+    /**
+     * Get an array of unsigned 16-bit integers using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return read-only view of the elements, mask with 0xffff to obtain unsigned values
+     */
+    public ShortBuffer get_uint16_array(FieldHandle field) {
+        return array(field.offset,field.variable,field.elementSize,2,field.getFieldName()).asShortBuffer();
+    }
+
+    /**
+     * Get an array of 32-bit integers using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return read-only view of the elements
+     */
+    public IntBuffer get_int32_array(FieldHandle field) {
+        return array(field.offset,field.variable,field.elementSize,4,field.getFieldName()).asIntBuffer();
+    }
+
+    /**
+     * Get a byte sequence using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return read-only view of the bytes
+     */
+    public ByteBuffer get_bytes(FieldHandle field) {
+        return array(field.offset,field.variable,field.elementSize,1,field.getFieldName());
+    }
+
+    /**
+     * Get a varint-encoded unsigned integer using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @return the integer stored in the field
+     */
+    public int get_varint(FieldHandle field) {
+        return varint(field.offset,field.variable,field.elementSize,field.getFieldName());
     }
 
 }
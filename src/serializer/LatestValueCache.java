@@ -0,0 +1,147 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.util.List;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * Packet handler keeping only the latest received packet of each packet format, for
+ * packet formats carrying state updates (such as sensor values) where only the newest
+ * value matters.  Each packet format has a slot which is overwritten in place by every
+ * received packet, and consumers read the latest packet whenever they need it, so stale
+ * updates never accumulate.  Subscribe the cache to the packet formats to keep, using
+ * Communicator.addPacketHandler.  Pooled packets are retained while stored in a slot,
+ * so the cache holds at most one receive buffer lease per packet format.
+ * @author ups
+ */
+public class LatestValueCache implements IPacketHandler {
+
+    /**
+     * The latest packet of each packet ID, null if none received
+     */
+    private IncomingPacket[] slots;
+    /**
+     * For each packet ID, the number of packets received
+     */
+    private long[] updates;
+    /**
+     * For each packet ID, whether the latest packet has been taken by poll
+     */
+    private boolean[] consumed;
+    /**
+     * Number of packets that were replaced before being taken by poll
+     */
+    private long overwritten = 0;
+
+    /**
+     * Create a cache for the packet formats of the given model
+     * @param model the complete packet format model
+     */
+    public LatestValueCache(List<PacketModel> model) {
+        slots = new IncomingPacket[model.size()];
+        updates = new long[model.size()];
+        consumed = new boolean[model.size()];
+    }
+
+    /**
+     * Store a received packet, replacing the previous packet of the same format
+     */
+    @Override
+    public void handlePacket(IncomingPacket packet) {
+        packet.retain();
+        IncomingPacket previous;
+        synchronized(this) {
+            int id = packet.getID();
+            previous = slots[id];
+            if(previous!=null && !consumed[id]) overwritten++;
+            slots[id] = packet;
+            consumed[id] = false;
+            updates[id]++;
+        }
+        if(previous!=null) previous.release();
+    }
+
+    /**
+     * Get the latest packet of the given format, which remains available to later calls
+     * @param type the token of the packet format
+     * @return the packet, or null if none has been received (the caller must release the packet)
+     */
+    public synchronized IncomingPacket latest(PacketType type) {
+        IncomingPacket packet = slots[type.getID()];
+        if(packet!=null) packet.retain();
+        return packet;
+    }
+
+    /**
+     * Get the latest packet of the given format if it has not been obtained by poll before
+     * @param type the token of the packet format
+     * @return the packet, or null if no new packet has been received (the caller must release the packet)
+     */
+    public synchronized IncomingPacket poll(PacketType type) {
+        int id = type.getID();
+        if(slots[id]==null || consumed[id]) return null;
+        consumed[id] = true;
+        slots[id].retain();
+        return slots[id];
+    }
+
+    /**
+     * Get the number of packets of the given format received so far, can be used to detect
+     * that a new value has arrived
+     * @param type the token of the packet format
+     * @return number of packets
+     */
+    public synchronized long getUpdates(PacketType type) {
+        return updates[type.getID()];
+    }
+
+    /**
+     * Get the number of packets that were replaced by a newer packet before being polled
+     * @return number of packets
+     */
+    public synchronized long getOverwritten() {
+        return overwritten;
+    }
+
+    /**
+     * Release all stored packets
+     */
+    public void clear() {
+        IncomingPacket[] stored;
+        synchronized(this) {
+            stored = slots.clone();
+            for(int id=0; id<slots.length; id++) slots[id] = null;
+        }
+        for(IncomingPacket packet: stored)
+            if(packet!=null) packet.release();
+    }
+}
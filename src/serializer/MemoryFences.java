@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Helper class: memory fences ordering plain accesses to memory shared with another
+ * process (through a memory-mapped file).  The fences of sun.misc.Unsafe are looked up
+ * reflectively so that the framework also runs where it is not available, in which case
+ * accesses to a volatile field are used instead (which in practice orders the surrounding
+ * accesses as well, on the common JVMs).
+ * @author ups
+ */
+final class MemoryFences {
+
+    /**
+     * The store fence of Unsafe bound to its instance, null if not available
+     */
+    private static final MethodHandle STORE_FENCE;
+    /**
+     * The load fence of Unsafe bound to its instance, null if not available
+     */
+    private static final MethodHandle LOAD_FENCE;
+    /**
+     * Field accessed by the fallback fences
+     */
+    private static volatile int barrier;
+
+    static {
+        MethodHandle store = null, load = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field instance = type.getDeclaredField("theUnsafe");
+            instance.setAccessible(true);
+            Object unsafe = instance.get(null);
+            MethodType fence = MethodType.methodType(void.class);
+            store = MethodHandles.lookup().findVirtual(type, "storeFence", fence).bindTo(unsafe);
+            load = MethodHandles.lookup().findVirtual(type, "loadFence", fence).bindTo(unsafe);
+        } catch (Exception e) {
+            // Not available, use the volatile fallback
+            store = load = null;
+        }
+        STORE_FENCE = store;
+        LOAD_FENCE = load;
+    }
+
+    /**
+     * Not instantiable
+     */
+    private MemoryFences() { }
+
+    /**
+     * Order all loads and stores before the fence before all stores after the fence, used
+     * before publishing data to the other process
+     */
+    static void storeFence() {
+        if(STORE_FENCE==null) {
+            barrier = 0;
+            return;
+        }
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new Error("Store fence failed: "+e);
+        }
+    }
+
+    /**
+     * Order all loads before the fence before all loads and stores after the fence, used
+     * after observing data published by the other process
+     */
+    static void loadFence() {
+        if(LOAD_FENCE==null) {
+            if(barrier!=0) barrier = 0;
+            return;
+        }
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new Error("Load fence failed: "+e);
+        }
+    }
+
+    /**
+     * Whether the fences of Unsafe are used
+     * @return true if available, false if the volatile fallback is used
+     */
+    static boolean isNative() {
+        return STORE_FENCE!=null;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outgoing data of a single connection, waiting to be written.  The bytes of queued packets
+ * are coalesced into fixed-size segments (so packets can be reused as soon as they have been
+ * queued), and all segments are written using a single gathering write.  The queue is
+ * bounded, and allocates no memory once its segments have been created.  Not thread safe,
+ * the owner is responsible for synchronization.
+ * 
+ * Packets of formats carrying state updates can be coalesced: such a packet overwrites the
+ * queued packet of the same format in place, as long as that packet has not started being
+ * written, so only the latest value is sent.
+ * @author ups
+ */
+class OutboundQueue {
+
+    /**
+     * Size of each segment
+     */
+    private static final int SEGMENT_SIZE = 8*1024;
+
+    /**
+     * A segment: storage filled by queued packets, and a view of the same storage
+     * from which the queued bytes are drained
+     */
+    private static class Segment {
+        /**
+         * The storage, positioned after the last byte queued
+         */
+        final ByteBuffer fill;
+        /**
+         * View of the storage, positioned at the first byte not yet written
+         */
+        final ByteBuffer drain;
+        /**
+         * Incremented whenever the segment is emptied, invalidating references to its contents
+         */
+        int generation = 0;
+        /**
+         * Create a segment
+         * @param direct whether to allocate the storage outside of the heap
+         */
+        Segment(boolean direct) {
+            fill = direct ? ByteBuffer.allocateDirect(SEGMENT_SIZE) : ByteBuffer.allocate(SEGMENT_SIZE);
+            drain = fill.duplicate();
+        }
+        /**
+         * Empty the segment
+         */
+        void reset() {
+            fill.clear();
+            drain.clear();
+            generation++;
+        }
+    }
+
+    /**
+     * Whether segments are allocated outside of the heap
+     */
+    private boolean direct;
+    /**
+     * The segments holding queued data, in order, the last one is being filled
+     */
+    private Segment[] segments;
+    /**
+     * Number of segments in use
+     */
+    private int count = 0;
+    /**
+     * Segments not in use
+     */
+    private Segment[] free;
+    /**
+     * Number of segments not in use
+     */
+    private int freeCount = 0;
+    /**
+     * Array used for passing the segments to a gathering write
+     */
+    private ByteBuffer[] gather;
+    /**
+     * Number of queued bytes not yet written
+     */
+    private int pending = 0;
+    /**
+     * Maximal number of queued bytes
+     */
+    private int capacity;
+    /**
+     * Whether a delayed flush has been scheduled
+     */
+    private boolean scheduled = false;
+    /**
+     * For each packet ID, the segment holding the last queued packet that can be coalesced
+     * (allocated on first use)
+     */
+    private Segment[] slotSegments;
+    /**
+     * For each packet ID, the generation of the segment when the packet was queued
+     */
+    private int[] slotGenerations;
+    /**
+     * For each packet ID, the offset of the packet in its segment
+     */
+    private int[] slotOffsets;
+    /**
+     * Number of packets that overwrote a queued packet
+     */
+    private long coalesced = 0;
+
+    /**
+     * Create an outbound queue
+     * @param capacity the maximal number of queued bytes
+     * @param direct whether to allocate segments outside of the heap (for writing to channels)
+     */
+    OutboundQueue(int capacity, boolean direct) {
+        this.capacity = capacity;
+        this.direct = direct;
+        int maxSegments = capacity/SEGMENT_SIZE+2;
+        segments = new Segment[maxSegments];
+        free = new Segment[maxSegments];
+        gather = new ByteBuffer[maxSegments];
+    }
+
+    /**
+     * Get the number of queued bytes not yet written
+     * @return number of bytes
+     */
+    int getPending() {
+        return pending;
+    }
+
+    /**
+     * Test whether the packet fits in the queue
+     * @param packet the packet
+     * @return true if the packet can be added
+     */
+    boolean fits(OutgoingPacket packet) {
+        return pending+frameSize(packet)<=capacity;
+    }
+
+    /**
+     * Get the number of bytes sent for a packet, including its correlation header if any
+     * @param packet the packet
+     * @return size in bytes
+     */
+    private static int frameSize(OutgoingPacket packet) {
+        int size = packet.getSize();
+        if(packet.getCorrelation()!=0) size += Packet.CORRELATION_SIZE;
+        return size;
+    }
+
+    /**
+     * Copy the bytes of a packet into the queue, preceded by its correlation header if any
+     * @param packet the packet to queue
+     * @throws IOException if the queue is full
+     */
+    void add(OutgoingPacket packet) throws IOException {
+        add(packet,false);
+    }
+
+    /**
+     * Copy the bytes of a packet into the queue, or, if the packet can be coalesced, over the
+     * queued packet of the same format when that packet has not been written at all yet
+     * (packets with variable-length fields differ in size and are never coalesced)
+     * @param packet the packet to queue
+     * @param coalesce whether the packet can replace a queued packet of the same format
+     * @throws IOException if the queue is full
+     */
+    void add(OutgoingPacket packet, boolean coalesce) throws IOException {
+        if(coalesce && packet.getCorrelation()==0 && !packet.model.hasVariableFields()) {
+            int id = packet.getID();
+            if(slotSegments==null) {
+                slotSegments = new Segment[256];
+                slotGenerations = new int[256];
+                slotOffsets = new int[256];
+            }
+            Segment segment = slotSegments[id];
+            int offset = slotOffsets[id];
+            if(segment!=null && segment.generation==slotGenerations[id] && segment.drain.position()<=offset) {
+                byte[] bytes = packet.getAllBytes();
+                for(int i=0; i<bytes.length; i++) segment.fill.put(offset+i, bytes[i]);
+                coalesced++;
+                return;
+            }
+            if(!fits(packet)) throw new IOException("Send queue full");
+            int size = packet.getSize();
+            if(size<=SEGMENT_SIZE && (count==0 || segments[count-1].fill.remaining()<size))
+                startSegment(); // keep the packet within one segment, so it can be overwritten
+            segment = segments[count-1];
+            slotSegments[id] = segment.fill.remaining()>=size ? segment : null;
+            slotGenerations[id] = segment.generation;
+            slotOffsets[id] = segment.fill.position();
+            add(packet.getAllBytes());
+            return;
+        }
+        if(!fits(packet)) throw new IOException("Send queue full");
+        if(packet.getCorrelation()!=0) add(packet.getCorrelationHeader());
+        add(packet.getAllBytes());
+    }
+
+    /**
+     * Get the number of packets that overwrote a queued packet instead of being queued
+     * @return number of packets
+     */
+    long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Append an empty segment to the queue
+     */
+    private void startSegment() {
+        if(count==segments.length) {
+            // Only when segments were left partially filled to keep coalesced packets whole
+            segments = Arrays.copyOf(segments, count*2);
+            free = Arrays.copyOf(free, count*2);
+            gather = new ByteBuffer[count*2];
+        }
+        Segment segment = freeCount>0 ? free[--freeCount] : new Segment(direct);
+        segments[count++] = segment;
+    }
+
+    /**
+     * Copy bytes into the queue, the caller must ensure that they fit
+     * @param bytes the bytes to queue
+     */
+    private void add(byte[] bytes) {
+        int offset = 0;
+        while(offset<bytes.length) {
+            if(count==0 || !segments[count-1].fill.hasRemaining()) startSegment();
+            ByteBuffer fill = segments[count-1].fill;
+            int length = Math.min(bytes.length-offset, fill.remaining());
+            fill.put(bytes, offset, length);
+            offset += length;
+        }
+        pending += bytes.length;
+    }
+
+    /**
+     * Write as much queued data as the channel accepts, using a single gathering write
+     * @param channel the channel to write to
+     * @return the number of bytes written
+     * @throws IOException if the data could not be written
+     */
+    long write(GatheringByteChannel channel) throws IOException {
+        if(count==0) return 0;
+        for(int i=0; i<count; i++) {
+            segments[i].drain.limit(segments[i].fill.position());
+            gather[i] = segments[i].drain;
+        }
+        long written = channel.write(gather, 0, count);
+        for(int i=0; i<count; i++) gather[i] = null;
+        pending -= written;
+        release();
+        return written;
+    }
+
+    /**
+     * Write all queued data to the stream, one write per segment
+     * @param out the stream to write to
+     * @throws IOException if the data could not be written
+     */
+    void write(OutputStream out) throws IOException {
+        for(int i=0; i<count; i++) {
+            ByteBuffer drain = segments[i].drain;
+            int end = segments[i].fill.position();
+            out.write(drain.array(), drain.arrayOffset()+drain.position(), end-drain.position());
+            drain.position(end);
+        }
+        pending = 0;
+        release();
+    }
+
+    /**
+     * Recycle all segments that have been written completely
+     */
+    private void release() {
+        if(count==0) return;
+        int written = 0;
+        while(written<count && !segments[written].drain.hasRemaining()) written++;
+        if(written==count) {
+            // Everything written: keep the last segment for reuse in place
+            segments[count-1].reset();
+            written--;
+        }
+        for(int i=0; i<written; i++) {
+            segments[i].reset();
+            free[freeCount++] = segments[i];
+        }
+        System.arraycopy(segments, written, segments, 0, count-written);
+        for(int i=count-written; i<count; i++) segments[i] = null;
+        count -= written;
+    }
+
+    /**
+     * Discard all queued data
+     */
+    void clear() {
+        for(int i=0; i<count; i++) {
+            segments[i].reset();
+            free[freeCount++] = segments[i];
+            segments[i] = null;
+        }
+        count = 0;
+        pending = 0;
+    }
+
+    /**
+     * Schedule a flush task to run after the delay given by the policy, unless one is already
+     * scheduled.  The task must call flushed once it runs.
+     * @param policy the flush policy giving the delay
+     * @param task the flush task
+     */
+    void schedule(FlushPolicy policy, Runnable task) {
+        if(scheduled) return;
+        scheduled = true;
+        Timers.scheduler().schedule(task, policy.getDelay(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Notify the queue that a scheduled flush task has run
+     */
+    void flushed() {
+        scheduled = false;
+    }
+}
@@ -30,16 +30,47 @@ either expressed or implied, of the University of Southern Denmark.
 package serializer;
 
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import serializer.PacketFormat.PacketModel;
 
 /**
  * An outgoing packet: a packet specialized for representing data to be sent, 
  * according to a given specific packet model
+ * 
+ * Packets obtained from Packetizer.acquirePacket are pooled: once sent, they must be
+ * given back using release, after which they are reused for later packets of the same
+ * format.  Sending a pooled packet thus allocates no memory.  Field data is written
+ * using the handle-based put methods; a recycled packet still holds the data of its
+ * previous use, so all fields must be written.  For packets not obtained from a pool,
+ * retain and release have no effect.
+ * 
+ * Variable-length fields are appended after the fixed-size fields, and must be written
+ * exactly once each, in the order in which they are declared in the packet format; the
+ * buffer grows as needed and the length in the header is updated with each field.
  * @author ups
  */
 public class OutgoingPacket extends Packet {
 
+    /**
+     * The pool that this packet is recycled to, null if not pooled
+     */
+    private OutgoingPacketPool pool;
+    /**
+     * Number of leases held on a pooled packet
+     */
+    private AtomicInteger references;
+    /**
+     * Index after the last byte written to the buffer
+     */
+    private int end;
+    /**
+     * Index of the next variable-length field to be written
+     */
+    private int nextVariable = 0;
+
     /**
      * Create outgoing packet object
      * @param id the ID to assign to the packet (must correspond to packet format ID)
@@ -52,6 +83,247 @@ public class OutgoingPacket extends Packet {
         buffer.put(MAGIC); // Magic number
         buffer.put(this.id); // PacketModel ID
         buffer.putShort((short)model.getFieldStorage()); // Length of packet
+        end = HEADER_SIZE+model.getFieldStorage();
+    }
+
+    /**
+     * Create pooled outgoing packet object
+     * @param id the ID to assign to the packet (must correspond to packet format ID)
+     * @param model the specific model to use when creating the packet
+     * @param pool the pool that the packet is recycled to
+     */
+    OutgoingPacket(int id, PacketModel model, OutgoingPacketPool pool) {
+        this(id,model);
+        this.pool = pool;
+        this.references = new AtomicInteger();
+    }
+
+    /**
+     * Take the initial lease on a pooled packet when it is handed out by its pool
+     */
+    void acquired() {
+        references.set(1);
+        if(nextVariable>0) {
+            end = HEADER_SIZE+model.getFieldStorage();
+            nextVariable = 0;
+            buffer.putShort(2, (short)model.getFieldStorage());
+        }
+    }
+
+    /**
+     * Check that all variable-length fields have been written, before sending the packet
+     */
+    void checkComplete() {
+        if(nextVariable<model.variableFields.size())
+            throw new Error("Variable-length field not written: "+model.variableFields.get(nextVariable).getName());
+    }
+
+    /**
+     * Take an additional lease on this packet, keeping it from being reused until released
+     */
+    public void retain() {
+        if(pool!=null) references.incrementAndGet();
+    }
+
+    /**
+     * Give up a lease on this packet, the packet must not be used after its last lease
+     * has been released
+     */
+    public void release() {
+        if(pool!=null && references.decrementAndGet()==0) pool.recycle(this);
+    }
+
+    /**
+     * Get the correlation header to send before this packet
+     * @return the bytes of the header
+     */
+    byte[] getCorrelationHeader() {
+        return new byte[] { response ? RESPONSE_MAGIC : REQUEST_MAGIC, (byte)(correlation>>>24), (byte)(correlation>>>16),
+                (byte)(correlation>>>8), (byte)correlation };
+    }
+
+    /**
+     * Store an unsigned 16-bit integer using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param value the value to store
+     * @return this packet
+     */
+    public OutgoingPacket put_uint16(FieldHandle field, int value) {
+        if(field.packed) BitField.write(buffer, 0, field.bitOffset, field.width, value);
+        else buffer.putShort(field.offset, (short)value);
+        return this;
+    }
+
+    /**
+     * Store an integer of any width using a precompiled field handle, the value is
+     * truncated to the width of the field
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param value the value to store
+     * @return this packet
+     */
+    public OutgoingPacket put_int(FieldHandle field, int value) {
+        if(field.packed) BitField.write(buffer, 0, field.bitOffset, field.width, value);
+        else switch(field.width) {
+        case 8: buffer.put(field.offset, (byte)value); break;
+        case 16: buffer.putShort(field.offset, (short)value); break;
+        default: buffer.putInt(field.offset, value);
+        }
+        return this;
+    }
+
+    /**
+     * Store a boolean value using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param value the value to store
+     * @return this packet
+     */
+    public OutgoingPacket put_boolean(FieldHandle field, boolean value) {
+        if(field.packed) BitField.write(buffer, 0, field.bitOffset, 1, value ? 1 : 0);
+        else buffer.put(field.offset, value ? (byte)1 : (byte)0);
+        return this;
+    }
+
+    /**
+     * Store an enum value given by its ordinal using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param ordinal the index of the enum value to store
+     * @return this packet
+     */
+    public OutgoingPacket put_enumOrdinal(FieldHandle field, int ordinal) {
+        if(field.packed) BitField.write(buffer, 0, field.bitOffset, field.width, ordinal);
+        else buffer.put(field.offset, (byte)ordinal);
+        return this;
+    }
+
+    /**
+     * Store an enum value given by its textual representation using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param value the textual representation of the enum value to store
+     * @return this packet
+     */
+    public OutgoingPacket put_enum(FieldHandle field, String value) {
+        for(int i=0; i<field.names.length; i++)
+            if(field.names[i].equals(value)) return put_enumOrdinal(field, i);
+        throw new Error("Illegal enum value: "+value);
+    }
+
+    /**
+     * Reserve space for the next variable-length field at the end of the packet, growing the
+     * buffer if needed
+     * @param field the handle of the field, must be the next variable-length field
+     * @param elementSize size of the elements of the data written
+     * @param size the number of bytes to reserve
+     * @return index of the reserved space in the buffer
+     */
+    private int append(FieldHandle field, int elementSize, int size) {
+        if(field.variable<0 || field.elementSize!=elementSize) throw new Error("Field type mismatch: "+field.getFieldName());
+        if(field.variable!=nextVariable) throw new Error("Variable-length field out of order: "+field.getFieldName());
+        int length = end+size-HEADER_SIZE;
+        if(length>0xffff) throw new Error("Packet too large: "+length);
+        if(end+size>buffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(Math.max(end+size,buffer.capacity()*2),HEADER_SIZE+0xffff));
+            System.arraycopy(buffer.array(), 0, grown.array(), 0, end);
+            buffer = grown;
+        }
+        int index = end;
+        end += size;
+        nextVariable++;
+        buffer.putShort(2, (short)length);
+        return index;
+    }
+
+    /**
+     * Append an array of unsigned 16-bit integers using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param values the values to store
+     * @return this packet
+     */
+    public OutgoingPacket put_uint16_array(FieldHandle field, short[] values) {
+        return put_uint16_array(field, ShortBuffer.wrap(values));
+    }
+
+    /**
+     * Append the remaining elements of a buffer as an array of unsigned 16-bit integers using
+     * a precompiled field handle, the position of the buffer is not changed
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param values the values to store
+     * @return this packet
+     */
+    public OutgoingPacket put_uint16_array(FieldHandle field, ShortBuffer values) {
+        int count = values.remaining();
+        int index = append(field, 2, 2+count*2);
+        buffer.putShort(index, (short)count);
+        buffer.position(index+2);
+        buffer.asShortBuffer().put(values.duplicate());
+        return this;
+    }
+
+    /**
+     * Append an array of 32-bit integers using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param values the values to store
+     * @return this packet
+     */
+    public OutgoingPacket put_int32_array(FieldHandle field, int[] values) {
+        return put_int32_array(field, IntBuffer.wrap(values));
+    }
+
+    /**
+     * Append the remaining elements of a buffer as an array of 32-bit integers using a
+     * precompiled field handle, the position of the buffer is not changed
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param values the values to store
+     * @return this packet
+     */
+    public OutgoingPacket put_int32_array(FieldHandle field, IntBuffer values) {
+        int count = values.remaining();
+        int index = append(field, 4, 2+count*4);
+        buffer.putShort(index, (short)count);
+        buffer.position(index+2);
+        buffer.asIntBuffer().put(values.duplicate());
+        return this;
+    }
+
+    /**
+     * Append a byte sequence using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param values the bytes to store
+     * @return this packet
+     */
+    public OutgoingPacket put_bytes(FieldHandle field, byte[] values) {
+        return put_bytes(field, ByteBuffer.wrap(values));
+    }
+
+    /**
+     * Append the remaining bytes of a buffer using a precompiled field handle, the position
+     * of the buffer is not changed
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param values the bytes to store
+     * @return this packet
+     */
+    public OutgoingPacket put_bytes(FieldHandle field, ByteBuffer values) {
+        int count = values.remaining();
+        int index = append(field, 1, 2+count);
+        buffer.putShort(index, (short)count);
+        buffer.position(index+2);
+        buffer.put(values.duplicate());
+        return this;
+    }
+
+    /**
+     * Append a varint-encoded unsigned integer using a precompiled field handle
+     * @param field the handle of the field, resolved for the format of this packet
+     * @param value the value to store
+     * @return this packet
+     */
+    public OutgoingPacket put_varint(FieldHandle field, int value) {
+        int size = 1;
+        for(int rest=value>>>7; rest!=0; rest>>>=7) size++;
+        int index = append(field, 0, size);
+        for(int i=0; i<size-1; i++, value>>>=7)
+            buffer.put(index+i, (byte)(value|0x80));
+        buffer.put(index+size-1, (byte)value);
+        return this;
     }
 
 }
@@ -0,0 +1,95 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * A pool of recycled outgoing packets of a single packet format.  The pool is bounded:
+ * packets are created on demand, and packets released when the pool is full are left
+ * to the garbage collector.
+ * @author ups
+ */
+class OutgoingPacketPool {
+
+    /**
+     * The ID of the packet format
+     */
+    private int id;
+    /**
+     * The model of the packet format
+     */
+    private PacketModel model;
+    /**
+     * Stack of free packets
+     */
+    private OutgoingPacket[] free;
+    /**
+     * Number of free packets on the stack
+     */
+    private int freeCount = 0;
+
+    /**
+     * Create a packet pool
+     * @param id the ID of the packet format
+     * @param model the model of the packet format
+     * @param size the maximal number of free packets retained
+     */
+    OutgoingPacketPool(int id, PacketModel model, int size) {
+        this.id = id;
+        this.model = model;
+        this.free = new OutgoingPacket[size];
+    }
+
+    /**
+     * Get a packet from the pool, creating a new one if the pool is empty
+     * @return a packet, leased to the caller
+     */
+    OutgoingPacket acquire() {
+        OutgoingPacket result = null;
+        synchronized(this) {
+            if(freeCount>0) {
+                result = free[--freeCount];
+                free[freeCount] = null;
+            }
+        }
+        if(result==null) result = new OutgoingPacket(id,model,this);
+        result.acquired();
+        return result;
+    }
+
+    /**
+     * Return a packet that is no longer leased to the pool
+     * @param packet the packet
+     */
+    synchronized void recycle(OutgoingPacket packet) {
+        if(freeCount<free.length) free[freeCount++] = packet;
+    }
+}
@@ -19,6 +19,19 @@ public abstract class Packet {
      * The size of the header: magic number, id, length (2 bytes)
      */
     protected static final int HEADER_SIZE = 1+1+2;
+    /**
+     * Magic number of a correlation header marking the following packet as a request
+     */
+    protected static final byte REQUEST_MAGIC = 88;
+    /**
+     * Magic number of a correlation header marking the following packet as the response
+     * to a request
+     */
+    protected static final byte RESPONSE_MAGIC = 89;
+    /**
+     * The size of the correlation header: magic number, correlation ID (4 bytes)
+     */
+    protected static final int CORRELATION_SIZE = 1+4;
     /**
      * The packet format ID of this packet (must correspond to complete model)
      */
@@ -27,10 +40,23 @@ public abstract class Packet {
      * The bytes contained in this packet
      */
     protected ByteBuffer buffer;
+    /**
+     * Index of the first byte of this packet in the buffer (non-zero when the packet
+     * is a view of a buffer shared with other packets)
+     */
+    protected int base = 0;
     /**
      * The model describing this packet
      */
     protected PacketModel model;
+    /**
+     * The correlation ID of a request or response, 0 if not correlated
+     */
+    protected int correlation = 0;
+    /**
+     * True if the packet is the response to a request, false if it is a request (or not correlated)
+     */
+    protected boolean response = false;
 
     /**
      * Helper method: convert a signed byte into the bitwise corresponding unsigned value,
@@ -50,6 +76,32 @@ public abstract class Packet {
         return unsignedByte(id);
     }
 
+    /**
+     * Get the correlation ID that identifies the request this packet belongs to
+     * @return the correlation ID, 0 if the packet is neither a request nor a response
+     */
+    public int getCorrelation() {
+        return correlation;
+    }
+
+    /**
+     * Check whether this packet is the response to a request rather than a request
+     * @return true if the packet is a response
+     */
+    public boolean isResponse() {
+        return response;
+    }
+
+    /**
+     * Set the correlation ID sent or received with this packet
+     * @param correlation the correlation ID, 0 if not correlated
+     * @param response true if the packet is a response, false if it is a request
+     */
+    void setCorrelation(int correlation, boolean response) {
+        this.correlation = correlation;
+        this.response = response;
+    }
+
     /**
      * Get the byte buffer storing the bytes of this buffer
      * @return the byte buffer
@@ -58,12 +110,33 @@ public abstract class Packet {
         return buffer;
     }
 
+    /**
+     * Get the index of the first byte of this packet in the buffer
+     * @return the index of the packet in the buffer
+     */
+    public int getBase() {
+        return base;
+    }
+
+    /**
+     * Get the total size of this packet, including the header
+     * @return size in bytes
+     */
+    public int getSize() {
+        return HEADER_SIZE+(((int)buffer.getShort(base+2))&0xffff);
+    }
+
     /**
      * Get all bytes stored in the local buffer
-     * @return the bytes stored in the buffer
+     * @return the bytes stored in the buffer (a copy if the buffer is shared with other packets)
      */
     public byte[] getAllBytes() {
-        return buffer.array();
+        int size = getSize();
+        if(base==0 && buffer.hasArray() && buffer.arrayOffset()==0 && buffer.array().length==size)
+            return buffer.array();
+        byte[] bytes = new byte[size];
+        for(int i=0; i<size; i++) bytes[i] = buffer.get(base+i);
+        return bytes;
     }
 
     /**
@@ -74,7 +147,7 @@ public abstract class Packet {
             return "Packet[NULL]";
         else {
             StringBuffer result = new StringBuffer("Packet[ ");
-            byte[] bytes = buffer.array();
+            byte[] bytes = getAllBytes();
             for(int i=0; i<bytes.length; i++)
                 result.append(unsignedByte(bytes[i])+" ");
             result.append("]");
@@ -0,0 +1,174 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+/**
+ * A pool of receive buffers and incoming packet objects, enabling zero-copy packet
+ * reception: data is read directly into a pooled buffer, and each packet received is a
+ * pooled view of its bytes in that buffer.  In steady state (all packets released after
+ * being handled) reception allocates no memory.  A pool can be shared by any number of
+ * communicators.
+ * 
+ * The pool is bounded: buffers and packets are created on demand, and if more are in use
+ * than the pool retains, the excess is left to the garbage collector when released.
+ * Packets larger than the buffer size are received into temporary oversized buffers.
+ * Note that dispatching packets in separate threads keeps buffers in use for longer,
+ * so the pool must be sized accordingly.
+ * @author ups
+ */
+public class PacketBufferPool {
+
+    /**
+     * Default size of each receive buffer
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 16*1024;
+    /**
+     * Number of packet objects retained per receive buffer retained
+     */
+    private static final int PACKETS_PER_BUFFER = 64;
+
+    /**
+     * Size of each receive buffer
+     */
+    private int bufferSize;
+    /**
+     * Whether receive buffers are allocated outside of the heap
+     */
+    private boolean direct;
+    /**
+     * Stack of free receive buffers
+     */
+    private ReceiveBuffer[] freeBuffers;
+    /**
+     * Number of free receive buffers on the stack
+     */
+    private int freeBufferCount = 0;
+    /**
+     * Stack of free packet objects
+     */
+    private IncomingPacket[] freePackets;
+    /**
+     * Number of free packet objects on the stack
+     */
+    private int freePacketCount = 0;
+    /**
+     * Number of buffers and packets allocated by the pool
+     */
+    private long allocations = 0;
+
+    /**
+     * Create a pool of heap buffers of the default size
+     * @param buffers the maximal number of buffers retained by the pool
+     */
+    public PacketBufferPool(int buffers) {
+        this(buffers,DEFAULT_BUFFER_SIZE,false);
+    }
+
+    /**
+     * Create a pool
+     * @param buffers the maximal number of buffers retained by the pool
+     * @param bufferSize the size in bytes of each buffer
+     * @param direct whether to allocate buffers outside of the heap
+     */
+    public PacketBufferPool(int buffers, int bufferSize, boolean direct) {
+        if(bufferSize<Packet.HEADER_SIZE) throw new Error("Buffer size too small: "+bufferSize);
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        freeBuffers = new ReceiveBuffer[buffers];
+        freePackets = new IncomingPacket[buffers*PACKETS_PER_BUFFER];
+    }
+
+    /**
+     * Get the size of the buffers of this pool
+     * @return buffer size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get the total number of buffers and packets allocated by this pool, which
+     * stops growing once the pool has warmed up (if the pool is large enough)
+     * @return number of allocations
+     */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * Get a receive buffer able to hold at least the given number of bytes
+     * @param size the minimal size of the buffer
+     * @return a receive buffer, holding a single reference for the caller
+     */
+    synchronized ReceiveBuffer acquireBuffer(int size) {
+        ReceiveBuffer result;
+        if(size<=bufferSize && freeBufferCount>0) {
+            result = freeBuffers[--freeBufferCount];
+            freeBuffers[freeBufferCount] = null;
+        } else {
+            allocations++;
+            result = new ReceiveBuffer(this,Math.max(size,bufferSize),direct);
+        }
+        result.retain();
+        return result;
+    }
+
+    /**
+     * Return a receive buffer that is no longer referenced to the pool
+     * @param buffer the buffer
+     */
+    synchronized void recycle(ReceiveBuffer buffer) {
+        if(buffer.capacity()==bufferSize && freeBufferCount<freeBuffers.length)
+            freeBuffers[freeBufferCount++] = buffer;
+    }
+
+    /**
+     * Get an unbound packet object
+     * @return a packet object, to be bound to a receive buffer
+     */
+    synchronized IncomingPacket acquirePacket() {
+        if(freePacketCount==0) {
+            allocations++;
+            return new IncomingPacket(this);
+        }
+        IncomingPacket result = freePackets[--freePacketCount];
+        freePackets[freePacketCount] = null;
+        return result;
+    }
+
+    /**
+     * Return a packet object that is no longer leased to the pool
+     * @param packet the packet
+     */
+    synchronized void recycle(IncomingPacket packet) {
+        if(freePacketCount<freePackets.length)
+            freePackets[freePacketCount++] = packet;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records packets into a capture log: a sequence of memory-mapped segment files, each
+ * holding a header followed by records of a timestamp (nanoseconds since the capture
+ * was started), the correlation ID, whether the packet is a response, and the raw bytes
+ * of the packet including its header.
+ * A new segment is started whenever the current one is full.  The log can be replayed
+ * using PacketReplay.  Thread safe, so a capture can be shared between communicators.
+ * @author ups
+ */
+public class PacketCapture {
+
+    /**
+     * Magic number at the start of every segment file
+     */
+    static final int SEGMENT_MAGIC = 0x50434150;
+    /**
+     * Size of the segment header: the magic number
+     */
+    static final int SEGMENT_HEADER_SIZE = 4;
+    /**
+     * Size of the record header: timestamp (8 bytes), correlation ID (4 bytes), response flag (1 byte)
+     */
+    static final int RECORD_HEADER_SIZE = 8+4+1;
+    /**
+     * Default size of each segment file
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+
+    /**
+     * The directory holding the segment files
+     */
+    private File directory;
+    /**
+     * The name of the log, used as prefix of the segment file names
+     */
+    private String name;
+    /**
+     * Size of each segment file
+     */
+    private int segmentSize;
+    /**
+     * Number of the current segment
+     */
+    private int segment = -1;
+    /**
+     * The file of the current segment
+     */
+    private RandomAccessFile file;
+    /**
+     * The mapping of the current segment, positioned after the last record
+     */
+    private MappedByteBuffer mapped;
+    /**
+     * Time at which the capture was started
+     */
+    private long start = System.nanoTime();
+    /**
+     * Number of packets recorded
+     */
+    private long count = 0;
+
+    /**
+     * Create a capture log using the default segment size
+     * @param directory the directory to store the segment files in
+     * @param name the name of the log
+     * @throws IOException if the first segment could not be created
+     */
+    public PacketCapture(File directory, String name) throws IOException {
+        this(directory,name,DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create a capture log
+     * @param directory the directory to store the segment files in
+     * @param name the name of the log
+     * @param segmentSize the size of each segment file, must hold at least one maximal packet
+     * @throws IOException if the first segment could not be created
+     */
+    public PacketCapture(File directory, String name, int segmentSize) throws IOException {
+        if(segmentSize<SEGMENT_HEADER_SIZE+RECORD_HEADER_SIZE+Packet.HEADER_SIZE+0xffff)
+            throw new Error("Segment size too small: "+segmentSize);
+        this.directory = directory;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        directory.mkdirs();
+        roll();
+    }
+
+    /**
+     * Get the file of a segment of a capture log
+     * @param directory the directory storing the segment files
+     * @param name the name of the log
+     * @param segment the number of the segment
+     * @return the file
+     */
+    static File segmentFile(File directory, String name, int segment) {
+        return new File(directory, name+"-"+String.format("%06d",segment)+".cap");
+    }
+
+    /**
+     * Record a packet
+     * @param packet the packet to record
+     * @throws IOException if a new segment could not be created
+     */
+    public synchronized void record(Packet packet) throws IOException {
+        if(mapped==null) throw new IOException("Capture closed");
+        int size = packet.getSize();
+        if(mapped.remaining()<RECORD_HEADER_SIZE+size) roll();
+        mapped.putLong(System.nanoTime()-start);
+        mapped.putInt(packet.getCorrelation());
+        mapped.put((byte)(packet.isResponse() ? 1 : 0));
+        ByteBuffer buffer = packet.getBuffer();
+        int base = packet.getBase();
+        if(buffer.hasArray())
+            mapped.put(buffer.array(), buffer.arrayOffset()+base, size);
+        else
+            for(int i=0; i<size; i++) mapped.put(buffer.get(base+i));
+        count++;
+    }
+
+    /**
+     * Get the number of packets recorded
+     * @return number of packets
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Finish the current segment and start a new one
+     * @throws IOException if the segment files could not be written or created
+     */
+    private void roll() throws IOException {
+        finish();
+        segment++;
+        file = new RandomAccessFile(segmentFile(directory,name,segment), "rw");
+        file.setLength(0);
+        mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        mapped.putInt(SEGMENT_MAGIC);
+    }
+
+    /**
+     * Write the current segment to disk and trim the file to the recorded data
+     * @throws IOException if the segment could not be written
+     */
+    private void finish() throws IOException {
+        if(mapped==null) return;
+        mapped.force();
+        file.setLength(mapped.position());
+        file.close();
+        mapped = null;
+        file = null;
+    }
+
+    /**
+     * Write all recorded packets to disk and close the log
+     * @throws IOException if the log could not be written
+     */
+    public synchronized void close() throws IOException {
+        finish();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Manages generation of a specialized codec class for a PacketFormat model
+ * @author ups
+ */
+public class PacketCodecGenerator {
+
+    /**
+     * The packet format to generate a codec for
+     */
+    private PacketFormat format;
+
+    /**
+     * Create generator for the given packet format
+     * @param format the packet format to generate a codec for
+     */
+    public PacketCodecGenerator(PacketFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Perform the generation into the given directory with the given naming
+     * @param directory name of directory to store code in, excluding package-name-derived directory
+     * @param packageName package (and subdirectory) to store code in
+     * @param className class name and also file name to store code in
+     */
+    public void compile(String directory, String packageName, String className) {
+        String definition = new PacketJavaCodeGenerator(format).generate(packageName, className);
+        File packageDirectory = new File(directory+File.separatorChar+packageName.replace('.', File.separatorChar));
+        packageDirectory.mkdirs();
+        String fileName = packageDirectory.getPath()+File.separatorChar+className+".java";
+        try {
+            FileWriter writer = new FileWriter(fileName);
+            writer.write(definition);
+            writer.close();
+        } catch (IOException e) {
+            throw new Error("I/O error: "+e);
+        }
+        System.out.println("Wrote file "+fileName);
+    }
+}
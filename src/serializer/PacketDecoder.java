@@ -0,0 +1,172 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.util.List;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * Stream decoder that reassembles packets from an arbitrarily fragmented byte
+ * stream.  Bytes are accumulated in a growable ring buffer and packets are
+ * delimited using the magic number and length field of the packet header, so
+ * a single read may yield any number of packets (including zero, when only
+ * part of a packet has arrived so far).  A correlation header preceding a
+ * packet is consumed and its ID is assigned to the packet.
+ * @author ups
+ */
+public class PacketDecoder {
+
+    /**
+     * Initial capacity of the ring buffer, must be a power of two
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The complete packet format model used to interpret incoming packets
+     */
+    private List<PacketModel> model;
+    /**
+     * Storage for the ring buffer, capacity is always a power of two
+     */
+    private byte[] ring = new byte[INITIAL_CAPACITY];
+    /**
+     * Index of the first unconsumed byte in the ring buffer
+     */
+    private int head = 0;
+    /**
+     * Number of unconsumed bytes stored in the ring buffer
+     */
+    private int size = 0;
+    /**
+     * Scratch storage used to linearize packets that wrap around the end of the ring buffer
+     */
+    private byte[] frame = new byte[Packet.HEADER_SIZE];
+    /**
+     * Correlation ID of the next packet, 0 if not correlated
+     */
+    private int correlation = 0;
+    /**
+     * True if the next packet is a response
+     */
+    private boolean response = false;
+
+    /**
+     * Create a decoder for the given packet format model
+     * @param model the complete packet format model
+     */
+    public PacketDecoder(List<PacketModel> model) {
+        this.model = model;
+    }
+
+    /**
+     * Append bytes received from the stream to the decoder
+     * @param bytes the array holding the received bytes
+     * @param offset the index of the first received byte
+     * @param length the number of bytes received
+     */
+    public void append(byte[] bytes, int offset, int length) {
+        ensureCapacity(size+length);
+        int tail = (head+size)&(ring.length-1);
+        int first = Math.min(length, ring.length-tail);
+        System.arraycopy(bytes, offset, ring, tail, first);
+        System.arraycopy(bytes, offset+first, ring, 0, length-first);
+        size += length;
+    }
+
+    /**
+     * Extract the next complete packet from the decoder
+     * @return the next packet, or null if no complete packet has been received yet
+     */
+    public IncomingPacket next() {
+        byte magic = size>0 ? peek(0) : 0;
+        if(magic==Packet.REQUEST_MAGIC || magic==Packet.RESPONSE_MAGIC) {
+            if(size<Packet.CORRELATION_SIZE) return null;
+            response = magic==Packet.RESPONSE_MAGIC;
+            correlation = ((peek(1)&0xff)<<24)|((peek(2)&0xff)<<16)|((peek(3)&0xff)<<8)|(peek(4)&0xff);
+            head = (head+Packet.CORRELATION_SIZE)&(ring.length-1);
+            size -= Packet.CORRELATION_SIZE;
+        }
+        if(size<Packet.HEADER_SIZE) return null;
+        if(peek(0)!=Packet.MAGIC) throw new Error("Illegal packet");
+        int length = Packet.HEADER_SIZE+(((peek(2)&0xff)<<8)|(peek(3)&0xff));
+        if(size<length) return null;
+        IncomingPacket packet;
+        if(head+length<=ring.length)
+            packet = new IncomingPacket(ring, head, model);
+        else {
+            if(frame.length<length) frame = new byte[length];
+            int first = ring.length-head;
+            System.arraycopy(ring, head, frame, 0, first);
+            System.arraycopy(ring, 0, frame, first, length-first);
+            packet = new IncomingPacket(frame, 0, model);
+        }
+        packet.setCorrelation(correlation, response);
+        correlation = 0;
+        response = false;
+        head = (head+length)&(ring.length-1);
+        size -= length;
+        return packet;
+    }
+
+    /**
+     * Get the number of buffered bytes not yet consumed as packets
+     * @return number of pending bytes
+     */
+    public int pending() {
+        return size;
+    }
+
+    /**
+     * Read a byte relative to the start of the unconsumed data
+     * @param index the index relative to the head of the ring buffer
+     * @return the byte stored at that index
+     */
+    private byte peek(int index) {
+        return ring[(head+index)&(ring.length-1)];
+    }
+
+    /**
+     * Grow the ring buffer (doubling its size) until it can hold the given number of bytes,
+     * moving the unconsumed data to the start of the new storage
+     * @param required the number of bytes that must fit in the ring buffer
+     */
+    private void ensureCapacity(int required) {
+        if(required<=ring.length) return;
+        int capacity = ring.length;
+        while(capacity<required) capacity <<= 1;
+        byte[] grown = new byte[capacity];
+        int first = Math.min(size, ring.length-head);
+        System.arraycopy(ring, head, grown, 0, first);
+        System.arraycopy(ring, 0, grown, first, size-first);
+        ring = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Distributes incoming packets to a set of packet handlers according to an execution
+ * mode: either directly in the receiving thread, or in virtual threads (optionally
+ * preserving the arrival order of the packets).
+ * 
+ * Handlers subscribe either to all packets or to the packets of a single format.  The
+ * subscriptions are compiled into an array of handlers per packet ID, which is replaced
+ * as a whole (copy-on-write) whenever a handler is added or removed: dispatching thus
+ * takes no locks and finds the handlers of a packet with a single array lookup.
+ * 
+ * Optionally, packets are passed to the handlers through a bounded InboundQueue drained
+ * by a separate thread, so that reception is never held up by slow handlers for longer
+ * than the overflow policy of the queue allows.  An exception thrown by a handler of a
+ * queued packet is reported through the uncaught exception handler of the draining thread,
+ * which then continues with the next handler.
+ * @author ups
+ */
+class PacketDispatcher {
+
+    /**
+     * Packet ID used for subscriptions to all packets
+     */
+    private static final int ALL_PACKETS = -1;
+
+    /**
+     * A handler subscribed to the packets with a given ID (or to all packets)
+     */
+    private static class Subscription {
+        /**
+         * The ID of the packets subscribed to, or ALL_PACKETS
+         */
+        final int packetID;
+        /**
+         * The subscribed handler
+         */
+        final IPacketHandler handler;
+        /**
+         * Create a subscription
+         * @param packetID the ID of the packets subscribed to, or ALL_PACKETS
+         * @param handler the subscribed handler
+         */
+        Subscription(int packetID, IPacketHandler handler) {
+            this.packetID = packetID;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * All subscriptions in the order they were made, guarded by the dispatcher lock
+     */
+    private List<Subscription> subscriptions = new ArrayList<Subscription>();
+    /**
+     * The handlers of each packet ID in subscription order, never modified once published
+     */
+    private volatile IPacketHandler[][] handlers;
+    /**
+     * The execution mode used for dispatching
+     */
+    private ExecutionMode mode;
+    /**
+     * The executor running the handlers, null when dispatching inline
+     */
+    private Executor executor;
+    /**
+     * The bounded queue that packets are passed through, null if dispatched directly
+     */
+    private volatile InboundQueue inbound;
+    /**
+     * Released once the thread draining the current inbound queue has finished, null if none
+     */
+    private CountDownLatch drained;
+    /**
+     * The metrics recording the time spent by the handlers, null if not enabled
+     */
+    private volatile CommunicatorMetrics metrics;
+
+    /**
+     * Create a dispatcher
+     * @param mode the execution mode to use when dispatching packets
+     * @param packetTypes the number of packet formats (packet IDs) in the packet format model
+     */
+    PacketDispatcher(ExecutionMode mode, int packetTypes) {
+        this.mode = mode;
+        this.handlers = new IPacketHandler[packetTypes][0];
+        if(mode==ExecutionMode.VIRTUAL_ORDERED)
+            executor = new SerialExecutor(VirtualThreads.executor());
+        else if(mode==ExecutionMode.VIRTUAL_CONCURRENT)
+            executor = VirtualThreads.executor();
+    }
+
+    /**
+     * Get the execution mode of this dispatcher
+     * @return the execution mode
+     */
+    ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Add a packet handler (observer for packet reception) for all packets
+     * @param handler the handler, invoked when a new packet arrives
+     */
+    void addPacketHandler(IPacketHandler handler) {
+        subscribe(new Subscription(ALL_PACKETS,handler));
+    }
+
+    /**
+     * Add a packet handler for the packets with the given ID only
+     * @param packetID the ID of the packet format
+     * @param handler the handler, invoked when a new packet with that ID arrives
+     */
+    void addPacketHandler(int packetID, IPacketHandler handler) {
+        if(packetID<0 || packetID>=handlers.length) throw new Error("Illegal packet ID");
+        subscribe(new Subscription(packetID,handler));
+    }
+
+    /**
+     * Remove all subscriptions of a packet handler
+     * @param handler the handler to remove
+     */
+    synchronized void removePacketHandler(IPacketHandler handler) {
+        for(int i=subscriptions.size()-1; i>=0; i--)
+            if(subscriptions.get(i).handler==handler) subscriptions.remove(i);
+        publish();
+    }
+
+    /**
+     * Add a subscription, a handler is only subscribed once to the same packets
+     * @param subscription the subscription to add
+     */
+    private synchronized void subscribe(Subscription subscription) {
+        for(Subscription s: subscriptions)
+            if(s.handler==subscription.handler && s.packetID==subscription.packetID) return;
+        subscriptions.add(subscription);
+        publish();
+    }
+
+    /**
+     * Compile the subscriptions into a new array of handlers per packet ID, and make
+     * it visible to dispatching threads
+     */
+    private void publish() {
+        IPacketHandler[][] table = new IPacketHandler[handlers.length][];
+        List<IPacketHandler> selected = new ArrayList<IPacketHandler>();
+        for(int id=0; id<table.length; id++) {
+            selected.clear();
+            for(Subscription s: subscriptions)
+                if((s.packetID==ALL_PACKETS || s.packetID==id) && !selected.contains(s.handler))
+                    selected.add(s.handler);
+            table[id] = selected.toArray(new IPacketHandler[selected.size()]);
+        }
+        handlers = table;
+    }
+
+    /**
+     * Pass all packets dispatched from now on through a new bounded queue, drained by a
+     * separate thread (a platform thread in the platform execution mode, otherwise a virtual
+     * thread), any previous queue is closed and the new queue is only drained once the
+     * previous queue has been drained, so packets keep their order
+     * @param capacity the maximal number of queued packets
+     * @param policy the policy used when the queue is full
+     * @return the new queue
+     */
+    synchronized InboundQueue setInboundQueue(int capacity, OverflowPolicy policy) {
+        final InboundQueue queue = new InboundQueue(capacity,policy);
+        final CountDownLatch previousDrained = drained;
+        final CountDownLatch queueDrained = new CountDownLatch(1);
+        Runnable drain = new Runnable() {
+            @Override public void run() {
+                try {
+                    if(previousDrained!=null) previousDrained.await();
+                    IncomingPacket packet;
+                    while((packet = queue.take())!=null) {
+                        if(mode==ExecutionMode.VIRTUAL_CONCURRENT)
+                            execute(packet);
+                        else
+                            deliver(packet, true);
+                    }
+                } catch (InterruptedException e) {
+                    throw new Error("Interrupted");
+                } finally {
+                    queueDrained.countDown();
+                }
+            }
+        };
+        if(mode==ExecutionMode.PLATFORM) {
+            Thread thread = new Thread(drain,"PacketHandler");
+            thread.setDaemon(true);
+            thread.start();
+        } else
+            VirtualThreads.executor().execute(drain);
+        InboundQueue previous = inbound;
+        inbound = queue;
+        drained = queueDrained;
+        if(previous!=null) previous.close();
+        return queue;
+    }
+
+    /**
+     * Get the bounded queue that packets are passed through
+     * @return the queue, null if packets are dispatched directly
+     */
+    InboundQueue getInboundQueue() {
+        return inbound;
+    }
+
+    /**
+     * Record the time spent by the handlers of each packet from now on
+     * @param metrics the metrics to record into, or null to stop recording
+     */
+    void setMetrics(CommunicatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Stop accepting packets, packets already queued are still handled
+     */
+    synchronized void close() {
+        if(inbound!=null) inbound.close();
+    }
+
+    /**
+     * Distribute a packet to all handlers, taking over the lease of the caller on the packet
+     * (released once all handlers have been invoked)
+     * @param packet the packet to distribute
+     */
+    void dispatch(final IncomingPacket packet) {
+        InboundQueue queue = inbound;
+        if(queue!=null)
+            queue.put(packet);
+        else
+            execute(packet);
+    }
+
+    /**
+     * Report a failure that does not stop the current thread, through the uncaught exception
+     * handler of the thread (which by default prints the stack trace)
+     * @param failure the failure
+     */
+    static void report(Throwable failure) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, failure);
+    }
+
+    /**
+     * Distribute a packet to all handlers according to the execution mode
+     * @param packet the packet to distribute
+     */
+    private void execute(final IncomingPacket packet) {
+        if(executor==null)
+            deliver(packet, false);
+        else executor.execute(new Runnable() {
+            @Override public void run() {
+                deliver(packet, false);
+            }
+        });
+    }
+
+    /**
+     * Invoke all handlers of the packet in the current thread, then release the packet
+     * @param packet the packet to deliver
+     * @param contained whether a RuntimeException thrown by a handler is reported and the
+     * remaining handlers still invoked, rather than propagated to the caller
+     */
+    private void deliver(IncomingPacket packet, boolean contained) {
+        CommunicatorMetrics recorder = metrics;
+        long start = recorder==null ? 0 : System.nanoTime();
+        int id = packet.getID();
+        try {
+            for(IPacketHandler h: handlers[id]) {
+                if(!contained) {
+                    h.handlePacket(packet);
+                    continue;
+                }
+                try {
+                    h.handlePacket(packet);
+                } catch(RuntimeException exn) {
+                    // The thread draining the inbound queue must survive failing handlers
+                    report(exn);
+                }
+            }
+        } finally {
+            packet.release();
+            if(recorder!=null) recorder.handled(id, System.nanoTime()-start);
+        }
+    }
+}
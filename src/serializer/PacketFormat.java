@@ -31,12 +31,24 @@ package serializer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A packet format specification language for driving the corresponding serialization
  * (and hence communication) classes.  Create a packet model by overriding the build 
  * method.
+ * 
+ * By default every field occupies a whole number of bytes.  A format can instead select
+ * a bit-packed layout (by calling bitPacked before defining any packets), in which a
+ * boolean occupies a single bit, an enum the minimal number of bits needed for its values,
+ * and integers can have any width from 1 to 32 bits.
+ * 
+ * Fixed-size fields can be followed by variable-length fields: length-prefixed arrays of
+ * 16-bit or 32-bit integers, length-prefixed byte sequences, and varint-encoded unsigned
+ * integers (7 bits per byte, least significant group first).  Variable-length fields are
+ * stored in order after the fixed-size fields, so the fixed-size fields keep their offsets.
  * @author ups
  */
 public abstract class PacketFormat {
@@ -53,16 +65,34 @@ public abstract class PacketFormat {
          * Field of the packet
          */
         List<FieldModel> fields = new ArrayList<FieldModel>();
+        /**
+         * Index of the fields by name
+         */
+        private Map<String,FieldModel> fieldIndex = new HashMap<String,FieldModel>();
+        /**
+         * The variable-length fields of the packet, in order
+         */
+        List<VariableFieldModel> variableFields = new ArrayList<VariableFieldModel>();
         /**
          * Accumulated size of the fields, in bytes.  When -1 indicates that the offsets stored
          * in each of the fields also is -1 and hence invalid.
          */
         int fieldsSize = -1;
         /**
-         * Create a packet format model with the corresponding name
+         * Whether the fields are bit-packed (if false each field occupies whole bytes)
+         */
+        private boolean packed;
+        /**
+         * Create a packet format model with the corresponding name, using whole bytes for each field
          * @param name the name of the packet format
          */
-        public PacketModel(String name) { this.packetName = name; }
+        public PacketModel(String name) { this(name,false); }
+        /**
+         * Create a packet format model with the corresponding name and layout
+         * @param name the name of the packet format
+         * @param packed whether the fields are bit-packed
+         */
+        public PacketModel(String name, boolean packed) { this.packetName = name; this.packed = packed; }
         /**
          * Add an integer format field to the packet
          * @param name of the field
@@ -70,7 +100,9 @@ public abstract class PacketFormat {
          * @param size in bits
          */
         public void add_int(String name, boolean unsigned, int size) {
-            fields.add(new IntFieldModel(name,unsigned,size));
+            if(size<1 || size>32 || (!packed && size!=8 && size!=16 && size!=32))
+                throw new Error("Bitsize not supported: "+size);
+            add(new IntFieldModel(name,unsigned,size));
         }
         /**
          * Add an enum field to the packet
@@ -78,36 +110,113 @@ public abstract class PacketFormat {
          * @param enames names of the enum elements
          */
         public void add_enum(String name, String[] enames) {
-            fields.add(new EnumFieldModel(name,enames));
+            add(new EnumFieldModel(name,enames));
         }
         /**
          * Add a boolean field to the packet
          * @param name of the field
          */
         public void add_boolean(String name) {
-            fields.add(new BooleanFieldModel(name));
+            add(new BooleanFieldModel(name));
         }
         /**
-         * Compute the individual offsets (in bytes) in each of the field
+         * Add a variable-length field to the packet
+         * @param name of the field
+         * @param elementSize size in bytes of each element of an array, or 0 for a varint
+         */
+        public void add_variable(String name, int elementSize) {
+            VariableFieldModel field = new VariableFieldModel(name,elementSize,variableFields.size());
+            variableFields.add(field);
+            add(field);
+        }
+        /**
+         * Add a field to the packet (lookup by name finds the first field of a given name)
+         * @param field the field to add
+         */
+        private void add(FieldModel field) {
+            if(!(field instanceof VariableFieldModel) && variableFields.size()>0)
+                throw new Error("Fixed-size fields must precede variable-length fields: "+field.name);
+            fields.add(field);
+            if(!fieldIndex.containsKey(field.name)) fieldIndex.put(field.name,field);
+        }
+        /**
+         * Compute the individual offsets (in bytes, and in bits) in each of the field
          */
         private void computeOffsets() {
             if(fieldsSize>-1) return; // already computed
+            if(packed)
+                computeBitOffsets();
+            else
+                computeByteOffsets();
+            // The variable-length fields are found by walking from the end of the fixed-size fields
+            for(VariableFieldModel field: variableFields) field.setOffset(fieldsSize);
+        }
+        /**
+         * Compute the individual offsets (in bytes, and in bits) in each of the field for the
+         * byte-aligned layout
+         */
+        private void computeByteOffsets() {
             final int[] offset = new int[1]; // "mutable integer object", incremented in loop
             for(FieldModel f: fields) f.dispatch(new IFieldModelDispatch() {
                 @Override public void dispatchBooleanField(BooleanFieldModel model) {
+                    model.setBits(offset[0]*8,8);
                     model.setOffset(offset[0]++);
                 }
                 @Override public void dispatchEnumField(EnumFieldModel model) {
+                    model.setBits(offset[0]*8,8);
                     model.setOffset(offset[0]++);
                 }
                 @Override public void dispatchIntField(IntFieldModel model) {
+                    model.setBits(offset[0]*8,model.size);
                     model.setOffset(offset[0]);
                     offset[0]+=model.size/8;
+                }
+                @Override public void dispatchVariableField(VariableFieldModel model) {
+                    // located after the fixed-size fields
                 }});
             fieldsSize = offset[0];
         }
         /**
-         * Get total storage occupied by the fields
+         * Compute the individual offsets (in bits) in each of the field for the bit-packed layout,
+         * the byte offset of a field is that of the byte holding its first bit
+         */
+        private void computeBitOffsets() {
+            final int[] offset = new int[1]; // "mutable integer object", incremented in loop
+            for(FieldModel f: fields) f.dispatch(new IFieldModelDispatch() {
+                @Override public void dispatchBooleanField(BooleanFieldModel model) {
+                    model.setBits(offset[0],1);
+                    model.setOffset(offset[0]/8);
+                    offset[0]+=1;
+                }
+                @Override public void dispatchEnumField(EnumFieldModel model) {
+                    int width = 32-Integer.numberOfLeadingZeros(Math.max(1,model.getNames().size()-1));
+                    model.setBits(offset[0],width);
+                    model.setOffset(offset[0]/8);
+                    offset[0]+=width;
+                }
+                @Override public void dispatchIntField(IntFieldModel model) {
+                    model.setBits(offset[0],model.size);
+                    model.setOffset(offset[0]/8);
+                    offset[0]+=model.size;
+                }
+                @Override public void dispatchVariableField(VariableFieldModel model) {
+                    // located after the fixed-size fields
+                }});
+            fieldsSize = (offset[0]+7)/8;
+        }
+        /**
+         * Whether the fields of this packet are bit-packed
+         * @return true if bit-packed, false if each field occupies whole bytes
+         */
+        public boolean isPacked() { return packed; }
+        /**
+         * Whether the packet has variable-length fields
+         * @return true if the size of the packet depends on its contents
+         */
+        public boolean hasVariableFields() { return variableFields.size()>0; }
+        /**
+         * Get total storage occupied by the fixed-size fields (the size of a packet with
+         * variable-length fields is this plus the size of its variable-length fields)
          * @return total storage in bytes
          */
         public int getFieldStorage() {
@@ -119,11 +228,19 @@ public abstract class PacketFormat {
          * @return offset in bytes
          */
         public int fieldOffset(String fieldName) {
+            return fieldLayout(fieldName).offset;
+        }
+        /**
+         * Get the model of the corresponding field, with its offsets computed
+         * @param fieldName the name of the field
+         * @return the field model
+         */
+        public FieldModel fieldLayout(String fieldName) {
             computeOffsets();
            FieldModel model = getField(fieldName);
            if(model==null) throw new Error("Illegal field name: "+fieldName);
            if(model.offset==-1) throw new Error("Field index not initialized: "+fieldName);
-           return model.offset;
+           return model;
         }
         /**
          * Get the model of the corresponding the field
@@ -131,9 +248,27 @@ public abstract class PacketFormat {
          * @return the field model
          */
         public FieldModel getField(String fieldName) {
-            for(FieldModel f: fields) if(fieldName.equals(f.name)) return f;
-            throw new Error("Field not found: "+fieldName);
-            
+            FieldModel field = fieldIndex.get(fieldName);
+            if(field==null) throw new Error("Field not found: "+fieldName);
+            return field;
+        }
+        /**
+         * Resolve a field into a handle for direct access to its data
+         * @param packetID the ID of this packet model in the complete model
+         * @param fieldName the name of the field
+         * @return the handle of the field
+         */
+        public FieldHandle getHandle(int packetID, String fieldName) {
+            int offset = Packet.HEADER_SIZE+fieldOffset(fieldName);
+            FieldModel field = getField(fieldName);
+            if(field instanceof VariableFieldModel) {
+                VariableFieldModel variable = (VariableFieldModel)field;
+                return new FieldHandle(packetName,fieldName,packetID,offset,variable.getIndex(),variable.getElementSize());
+            }
+            String[] names = null;
+            if(field instanceof EnumFieldModel) names = ((EnumFieldModel)field).getNames().toArray(new String[0]);
+            return new FieldHandle(packetName,fieldName,packetID,offset,names,
+                    packed,Packet.HEADER_SIZE*8+field.getBitOffset(),field.getBitWidth(),field.isSigned());
         }
         /**
          * Get the name of the packet format
@@ -153,6 +288,14 @@ public abstract class PacketFormat {
          * Offset (in bytes) of the field, relative to packet start
          */
         private int offset = -1;
+        /**
+         * Offset (in bits) of the field, relative to packet start
+         */
+        private int bitOffset = -1;
+        /**
+         * Number of bits occupied by the field
+         */
+        private int bitWidth = -1;
         /**
          * Create field with corresponding name
          * @param name of the field
@@ -168,6 +311,37 @@ public abstract class PacketFormat {
          * @param offset the ofset (in bytes) of the field, relative to packet start
          */
         public void setOffset(int offset) { this.offset = offset; }
+        /**
+         * Get the name of the field
+         * @return field name
+         */
+        public String getName() { return name; }
+        /**
+         * Get the offset of the field (only valid once the packet offsets have been computed)
+         * @return the offset (in bytes) of the field, relative to the start of the packet data
+         */
+        public int getOffset() { return offset; }
+        /**
+         * Set the location of the field in bits
+         * @param bitOffset the offset (in bits) of the field, relative to packet start
+         * @param bitWidth the number of bits occupied by the field
+         */
+        public void setBits(int bitOffset, int bitWidth) { this.bitOffset = bitOffset; this.bitWidth = bitWidth; }
+        /**
+         * Get the offset of the field in bits (only valid once the packet offsets have been computed)
+         * @return the offset (in bits) of the field, relative to the start of the packet data
+         */
+        public int getBitOffset() { return bitOffset; }
+        /**
+         * Get the number of bits occupied by the field (only valid once the packet offsets have been computed)
+         * @return width in bits
+         */
+        public int getBitWidth() { return bitWidth; }
+        /**
+         * Whether the value of the field is a signed integer
+         * @return true if signed
+         */
+        public boolean isSigned() { return false; }
     }
     /**
      * Metamodel for a packet field holding an integer value
@@ -197,6 +371,21 @@ public abstract class PacketFormat {
         @Override public void dispatch(IFieldModelDispatch target) {
             target.dispatchIntField(this);
         }
+        /**
+         * Whether the integer is unsigned
+         * @return true if unsigned, false if signed
+         */
+        public boolean isUnsigned() { return unsigned; }
+        /**
+         * Whether the value of the field is a signed integer
+         * @return true if signed
+         */
+        @Override public boolean isSigned() { return !unsigned; }
+        /**
+         * Get the size of the integer
+         * @return size in bits
+         */
+        public int getSize() { return size; }
     }
     /**
      * Metamodel for a packet field holding an enum value
@@ -241,14 +430,69 @@ public abstract class PacketFormat {
         }
     }
     
+    /**
+     * Metamodel for a variable-length packet field: a length-prefixed array (the length is
+     * an unsigned 16-bit count of elements) or a varint
+     */
+    protected static class VariableFieldModel extends FieldModel {
+        /**
+         * Size in bytes of each array element, 0 for a varint
+         */
+        private int elementSize;
+        /**
+         * Index of the field among the variable-length fields of the packet
+         */
+        private int index;
+        /**
+         * Create a variable-length field model
+         * @param name name of the field
+         * @param elementSize size in bytes of each array element, or 0 for a varint
+         * @param index index of the field among the variable-length fields of the packet
+         */
+        public VariableFieldModel(String name, int elementSize, int index) {
+            super(name);
+            this.elementSize = elementSize;
+            this.index = index;
+        }
+        /**
+         * Dispatcher
+         */
+        @Override public void dispatch(IFieldModelDispatch target) {
+            target.dispatchVariableField(this);
+        }
+        /**
+         * Get the size of each array element
+         * @return size in bytes, 0 for a varint
+         */
+        public int getElementSize() { return elementSize; }
+        /**
+         * Whether the field is a varint
+         * @return true if varint, false if array
+         */
+        public boolean isVarint() { return elementSize==0; }
+        /**
+         * Get the index of the field among the variable-length fields of the packet
+         * @return the index
+         */
+        public int getIndex() { return index; }
+    }
+    
     /**
      * The complete metamodel describing all packets of this format
      */
     private List<PacketModel> completeModel = new ArrayList<PacketModel>();
+    /**
+     * The complete metamodel frozen into an indexed registry, once built
+     */
+    private PacketRegistry registry;
     /**
      * The current packet format being constructed
      */
     private PacketModel current;
+    /**
+     * Whether the packets of this format are bit-packed
+     */
+    private boolean packed = false;
     
     /**
      * Create a new packet format by building the packet format model
@@ -256,6 +500,7 @@ public abstract class PacketFormat {
     public PacketFormat() {
         build();
         completeModel.add(current);
+        registry = new PacketRegistry(completeModel);
     }
     /**
      * Start the definition of a new packet
@@ -264,9 +509,19 @@ public abstract class PacketFormat {
      */
     public PacketFormat packet(String name) {
         if(current!=null) completeModel.add(current);
-        current = new PacketModel(name);
+        current = new PacketModel(name,packed);
         return this; 
     }
+    /**
+     * Select the bit-packed layout for all packets of this format, must be done before
+     * defining any packets
+     * @return the builder instance
+     */
+    public PacketFormat bitPacked() {
+        if(current!=null) throw new Error("Layout must be selected before defining packets");
+        packed = true;
+        return this;
+    }
     /**
      * Add an unsigned 16-bit integer field to the current packet
      * @param name the name of the field
@@ -276,6 +531,65 @@ public abstract class PacketFormat {
         current.add_int(name,true,16);
         return this; 
     }
+    /**
+     * Add an unsigned integer field of the given width to the current packet (any width
+     * from 1 to 32 bits when bit-packed, otherwise 8, 16, or 32 bits)
+     * @param name the name of the field
+     * @param bits the width of the field in bits
+     * @return the builder instance
+     */
+    public PacketFormat _uint(String name, int bits) {
+        current.add_int(name,true,bits);
+        return this; 
+    }
+    /**
+     * Add a signed integer field of the given width to the current packet (any width
+     * from 1 to 32 bits when bit-packed, otherwise 8, 16, or 32 bits)
+     * @param name the name of the field
+     * @param bits the width of the field in bits
+     * @return the builder instance
+     */
+    public PacketFormat _int(String name, int bits) {
+        current.add_int(name,false,bits);
+        return this; 
+    }
+    /**
+     * Add a variable-length array of unsigned 16-bit integers to the current packet
+     * @param name the name of the field
+     * @return the builder instance
+     */
+    public PacketFormat _uint16_array(String name) {
+        current.add_variable(name,2);
+        return this; 
+    }
+    /**
+     * Add a variable-length array of signed 32-bit integers to the current packet
+     * @param name the name of the field
+     * @return the builder instance
+     */
+    public PacketFormat _int32_array(String name) {
+        current.add_variable(name,4);
+        return this; 
+    }
+    /**
+     * Add a variable-length sequence of bytes to the current packet
+     * @param name the name of the field
+     * @return the builder instance
+     */
+    public PacketFormat _bytes(String name) {
+        current.add_variable(name,1);
+        return this; 
+    }
+    /**
+     * Add a varint-encoded unsigned integer (1 to 5 bytes, depending on the value) to the
+     * current packet
+     * @param name the name of the field
+     * @return the builder instance
+     */
+    public PacketFormat _varint(String name) {
+        current.add_variable(name,0);
+        return this; 
+    }
     /**
      * Add an enum field to the current packet
      * @param name the name of the field
@@ -300,7 +614,39 @@ public abstract class PacketFormat {
      * Get the complete packet format model
      * @return the model instance
      */
-    public List<PacketModel> getModel() { return completeModel; }
+    public List<PacketModel> getModel() { return registry; }
+
+    /**
+     * Get the token identifying the packet format of the given name
+     * @param name the name of the packet format
+     * @return the packet type token
+     */
+    public PacketType type(String name) {
+        return registry.type(name);
+    }
+
+    /**
+     * Resolve a field of a given packet into a handle, allowing the field to be accessed
+     * without any lookup by name
+     * @param packetName the name of the packet
+     * @param fieldName the name of the field
+     * @return the handle of the field
+     */
+    public FieldHandle field(String packetName, String fieldName) {
+        return field(registry,packetName,fieldName);
+    }
+
+    /**
+     * Resolve a field of a given packet in a complete packet format model into a handle
+     * @param completeModel the complete packet format model
+     * @param packetName the name of the packet
+     * @param fieldName the name of the field
+     * @return the handle of the field
+     */
+    static FieldHandle field(List<PacketModel> completeModel, String packetName, String fieldName) {
+        PacketType type = PacketRegistry.of(completeModel).type(packetName);
+        return type.model.getHandle(type.id,fieldName);
+    }
     
     /**
      * Build the model instance
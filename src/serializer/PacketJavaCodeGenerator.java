@@ -0,0 +1,338 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.util.List;
+
+import serializer.PacketFormat.BooleanFieldModel;
+import serializer.PacketFormat.EnumFieldModel;
+import serializer.PacketFormat.FieldModel;
+import serializer.PacketFormat.IntFieldModel;
+import serializer.PacketFormat.PacketModel;
+import serializer.PacketFormat.VariableFieldModel;
+
+/**
+ * Code generator for packet formats described using the PacketFormat model.
+ * Generates a single class definition that subclasses GeneratedCodec and
+ * provides a typed encoding method and a typed decoding method for each packet,
+ * using fixed offsets: the generated code does no lookup by name and no boxing.
+ * Decoding delivers the field values to a generated Handler interface which has
+ * one method per packet, a dispatch method selects the decoder by packet ID.
+ * @author ups
+ */
+public class PacketJavaCodeGenerator {
+
+    /**
+     * The model according to which the code is generated
+     */
+    private List<PacketModel> model;
+    /**
+     * The buffer in which the output string (the class definition) is accumulated
+     */
+    private StringBuilder builder;
+
+    /**
+     * Create a code generator for the corresponding packet format
+     * @param format the packet format for which code is to be generated
+     */
+    public PacketJavaCodeGenerator(PacketFormat format) {
+        this.model = format.getModel();
+    }
+
+    /**
+     * Generate code for the corresponding packet format, named according to the supplied class
+     * name and package name.  Packet formats with variable-length fields are not supported.
+     * @param packageName the package name to use for the generated class definition
+     * @param className the class name to use for the generated class definition
+     * @return the text of a complete class definition
+     */
+    public String generate(String packageName, String className) {
+        for(PacketModel packet: model)
+            if(packet.hasVariableFields()) throw new Error("Variable-length fields not supported: "+packet.getName());
+        builder = new StringBuilder();
+        generateHeader(packageName, className);
+        generateConstants();
+        generateHandlerInterface();
+        generateConstructor(className);
+        for(int id=0; id<model.size(); id++) {
+            generateEncoder(id, model.get(id));
+            generateDecoder(model.get(id));
+            generateFieldGetters(model.get(id));
+        }
+        generateDispatch();
+        generateFooter();
+        return builder.toString();
+    }
+
+    /**
+     * Convenience method for appending text to the accumulating buffer and then adding a newline
+     * @param text the text to append to the buffer
+     */
+    private void emit(String text) {
+        builder.append(text);
+        builder.append('\n');
+    }
+
+    /**
+     * Convert a packet name to the corresponding part of a method name
+     * @param name the name of the packet
+     * @return the name with the first letter capitalized
+     */
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0))+name.substring(1);
+    }
+
+    /**
+     * Convert a name to the corresponding constant name
+     * @param name the name of a packet or field
+     * @return the name in upper case
+     */
+    private static String constant(String name) {
+        return name.toUpperCase();
+    }
+
+    /**
+     * Generate the class header: package, import, and class declaration
+     * @param packageName the package name to use
+     * @param className the class name to use
+     */
+    private void generateHeader(String packageName, String className) {
+        emit("// Automatically generated code, do not edit");
+        emit("package "+packageName+";");
+        emit("import java.nio.ByteBuffer;");
+        for(PacketModel packet: model)
+            if(packet.isPacked()) { emit("import serializer.BitField;"); break; }
+        emit("import serializer.GeneratedCodec;");
+        emit("import serializer.IncomingPacket;");
+        emit("import serializer.OutgoingPacket;");
+        emit("import serializer.PacketFormat;");
+        emit("public class "+className+" extends GeneratedCodec {");
+    }
+
+    /**
+     * Generate constants for the packet IDs and the names of enum values
+     */
+    private void generateConstants() {
+        for(int id=0; id<model.size(); id++)
+            emit("  public static final int "+constant(model.get(id).getName())+" = "+id+";");
+        for(PacketModel packet: model)
+            for(FieldModel field: packet.fields)
+                if(field instanceof EnumFieldModel) {
+                    StringBuilder names = new StringBuilder();
+                    for(String name: ((EnumFieldModel)field).getNames()) {
+                        if(names.length()>0) names.append(", ");
+                        names.append("\""+name+"\"");
+                    }
+                    emit("  public static final String[] "+constant(packet.getName())+"_"+constant(field.getName())+" = { "+names+" };");
+                }
+    }
+
+    /**
+     * Generate the handler interface, with one method per packet taking the field values as arguments
+     */
+    private void generateHandlerInterface() {
+        emit("  /** Receives the field values of decoded packets, enum values are given by their index */");
+        emit("  public interface Handler {");
+        for(PacketModel packet: model) {
+            StringBuilder parameters = new StringBuilder();
+            for(FieldModel field: packet.fields) {
+                if(parameters.length()>0) parameters.append(", ");
+                parameters.append(type(field)+" "+field.getName());
+            }
+            emit("    void "+packet.getName()+"("+parameters+");");
+        }
+        emit("  }");
+    }
+
+    /**
+     * Generate the constructor, which passes the layout of the packet format to the superclass
+     * for verification
+     * @param className the class name to use
+     */
+    private void generateConstructor(String className) {
+        StringBuilder names = new StringBuilder();
+        StringBuilder sizes = new StringBuilder();
+        for(PacketModel packet: model) {
+            if(names.length()>0) { names.append(", "); sizes.append(", "); }
+            names.append("\""+packet.getName()+"\"");
+            sizes.append(packet.getFieldStorage());
+        }
+        emit("  public "+className+"(PacketFormat format) {");
+        emit("    super(format, new String[] { "+names+" }, new int[] { "+sizes+" });");
+        emit("  }");
+    }
+
+    /**
+     * Generate the encoding method of a packet: fills in the fields of a pooled packet
+     * @param id the ID of the packet
+     * @param packet the model of the packet
+     */
+    private void generateEncoder(int id, PacketModel packet) {
+        StringBuilder parameters = new StringBuilder();
+        for(FieldModel field: packet.fields) {
+            if(parameters.length()>0) parameters.append(", ");
+            parameters.append(type(field)+" "+field.getName());
+        }
+        emit("  /** Encode a "+packet.getName()+" packet, the packet must be released once sent */");
+        emit("  public OutgoingPacket encode"+capitalize(packet.getName())+"("+parameters+") {");
+        emit("    OutgoingPacket packet = acquire("+id+");");
+        if(packet.fields.size()>0) emit("    ByteBuffer buffer = packet.getBuffer();");
+        for(final FieldModel field: packet.fields) {
+            final int offset = Packet.HEADER_SIZE+field.getOffset();
+            if(packet.isPacked()) {
+                String value = field instanceof BooleanFieldModel ? "("+field.getName()+" ? 1 : 0)" : field.getName();
+                emit("    BitField.write(buffer, 0, "+(Packet.HEADER_SIZE*8+field.getBitOffset())+", "+field.getBitWidth()+", "+value+");");
+                continue;
+            }
+            field.dispatch(new IFieldModelDispatch() {
+                @Override public void dispatchBooleanField(BooleanFieldModel model) {
+                    emit("    buffer.put("+offset+", "+field.getName()+" ? (byte)1 : (byte)0);");
+                }
+                @Override public void dispatchEnumField(EnumFieldModel model) {
+                    emit("    buffer.put("+offset+", (byte)"+field.getName()+");");
+                }
+                @Override public void dispatchIntField(IntFieldModel model) {
+                    switch(model.getSize()) {
+                    case 8: emit("    buffer.put("+offset+", (byte)"+field.getName()+");"); break;
+                    case 16: emit("    buffer.putShort("+offset+", (short)"+field.getName()+");"); break;
+                    case 32: emit("    buffer.putInt("+offset+", "+field.getName()+");"); break;
+                    default: throw new Error("Bitsize not supported: "+model.getSize());
+                    }
+                }
+                @Override public void dispatchVariableField(VariableFieldModel model) {
+                    throw new Error("Variable-length fields not supported: "+model.getName());
+                }
+            });
+        }
+        emit("    return packet;");
+        emit("  }");
+    }
+
+    /**
+     * Generate the decoding method of a packet: reads all fields and passes them to the handler
+     * @param packet the model of the packet
+     */
+    private void generateDecoder(PacketModel packet) {
+        StringBuilder arguments = new StringBuilder();
+        for(FieldModel field: packet.fields) {
+            if(arguments.length()>0) arguments.append(", ");
+            arguments.append(read(field,packet.isPacked()));
+        }
+        emit("  /** Decode a "+packet.getName()+" packet, delivering the field values to the handler */");
+        emit("  public static void decode"+capitalize(packet.getName())+"(IncomingPacket packet, Handler handler) {");
+        if(packet.fields.size()>0) {
+            emit("    ByteBuffer buffer = packet.getBuffer();");
+            emit("    int base = packet.getBase();");
+        }
+        emit("    handler."+packet.getName()+"("+arguments+");");
+        emit("  }");
+    }
+
+    /**
+     * Generate a getter method for each field of a packet
+     * @param packet the model of the packet
+     */
+    private void generateFieldGetters(PacketModel packet) {
+        for(FieldModel field: packet.fields) {
+            emit("  public static "+type(field)+" "+packet.getName()+"_"+field.getName()+"(IncomingPacket packet) {");
+            emit("    ByteBuffer buffer = packet.getBuffer();");
+            emit("    int base = packet.getBase();");
+            emit("    return "+read(field,packet.isPacked())+";");
+            emit("  }");
+        }
+    }
+
+    /**
+     * Generate the dispatch method, which decodes any packet according to its ID
+     */
+    private void generateDispatch() {
+        emit("  /** Decode a packet of any format, delivering the field values to the corresponding handler method */");
+        emit("  public static void dispatch(IncomingPacket packet, Handler handler) {");
+        emit("    switch(packet.getID()) {");
+        for(int id=0; id<model.size(); id++)
+            emit("    case "+id+": decode"+capitalize(model.get(id).getName())+"(packet, handler); break;");
+        emit("    default: throw new Error(\"Illegal packet ID\");");
+        emit("    }");
+        emit("  }");
+    }
+
+    /**
+     * Generate end of the class declaration
+     */
+    private void generateFooter() {
+        emit("}");
+    }
+
+    /**
+     * Get the Java type used for representing the value of a field
+     * @param field the field
+     * @return the name of the Java type
+     */
+    private static String type(FieldModel field) {
+        return field instanceof BooleanFieldModel ? "boolean" : "int";
+    }
+
+    /**
+     * Get an expression reading the value of a field from the variables buffer and base
+     * @param field the field
+     * @param packed whether the packet is bit-packed
+     * @return the Java expression
+     */
+    private static String read(final FieldModel field, boolean packed) {
+        if(packed) {
+            String bits = "buffer, base, "+(Packet.HEADER_SIZE*8+field.getBitOffset())+", "+field.getBitWidth();
+            if(field instanceof BooleanFieldModel) return "BitField.read("+bits+")!=0";
+            return (field.isSigned() ? "BitField.readSigned(" : "BitField.read(")+bits+")";
+        }
+        final int offset = Packet.HEADER_SIZE+field.getOffset();
+        final String[] result = new String[1];
+        field.dispatch(new IFieldModelDispatch() {
+            @Override public void dispatchBooleanField(BooleanFieldModel model) {
+                result[0] = "buffer.get(base+"+offset+")!=0";
+            }
+            @Override public void dispatchEnumField(EnumFieldModel model) {
+                result[0] = "buffer.get(base+"+offset+")&0xff";
+            }
+            @Override public void dispatchIntField(IntFieldModel model) {
+                String mask = model.isUnsigned() ? "&0xff" : "";
+                switch(model.getSize()) {
+                case 8: result[0] = "buffer.get(base+"+offset+")"+mask; break;
+                case 16: result[0] = "buffer.getShort(base+"+offset+")"+(model.isUnsigned() ? "&0xffff" : ""); break;
+                case 32: result[0] = "buffer.getInt(base+"+offset+")"; break;
+                default: throw new Error("Bitsize not supported: "+model.getSize());
+                }
+            }
+            @Override public void dispatchVariableField(VariableFieldModel model) {
+                throw new Error("Variable-length fields not supported: "+model.getName());
+            }
+        });
+        return result[0];
+    }
+}
@@ -0,0 +1,118 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * An immutable complete packet format model, indexed both by packet ID (an array) and by
+ * packet name (a hash map).  A PacketFormat freezes its model into a registry once built,
+ * so that the packet formats can be looked up without scanning the model.
+ * @author ups
+ */
+final class PacketRegistry extends AbstractList<PacketModel> implements RandomAccess {
+
+    /**
+     * The packet types, indexed by packet ID
+     */
+    private final PacketType[] types;
+    /**
+     * The packet types, indexed by name (the first packet format of a given name wins)
+     */
+    private final Map<String,PacketType> names = new HashMap<String,PacketType>();
+
+    /**
+     * Create a registry holding the packet formats of the given model
+     * @param model the complete packet format model
+     */
+    PacketRegistry(List<PacketModel> model) {
+        types = new PacketType[model.size()];
+        for(int id=0; id<types.length; id++) {
+            types[id] = new PacketType(id,model.get(id));
+            if(!names.containsKey(model.get(id).getName())) names.put(model.get(id).getName(),types[id]);
+        }
+    }
+
+    /**
+     * Get the registry of a complete packet format model, which is the model itself
+     * if it already is a registry
+     * @param model the complete packet format model
+     * @return the registry
+     */
+    static PacketRegistry of(List<PacketModel> model) {
+        if(model instanceof PacketRegistry) return (PacketRegistry)model;
+        return new PacketRegistry(model);
+    }
+
+    /**
+     * Get the packet type with the given name
+     * @param name the name of the packet format
+     * @return the packet type token
+     */
+    PacketType type(String name) {
+        PacketType type = names.get(name);
+        if(type==null) throw new Error("Packet model not found: "+name);
+        return type;
+    }
+
+    /**
+     * Get the packet type with the given ID
+     * @param id the ID of the packet format
+     * @return the packet type token
+     */
+    PacketType type(int id) {
+        return types[id];
+    }
+
+    @Override
+    public PacketModel get(int id) {
+        return types[id].model;
+    }
+
+    @Override
+    public int size() {
+        return types.length;
+    }
+
+    @Override
+    public int indexOf(Object packet) {
+        if(packet instanceof PacketModel) {
+            PacketType type = names.get(((PacketModel)packet).getName());
+            if(type!=null && type.model==packet) return type.id;
+        }
+        return super.indexOf(packet);
+    }
+}
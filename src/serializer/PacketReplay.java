@@ -0,0 +1,154 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * Replays a capture log written by PacketCapture, delivering the recorded packets to
+ * packet handlers either as fast as possible or with their original timing.  Packets are
+ * not copied: each segment file is memory-mapped and handlers receive views of the mapped
+ * data.  As with pooled packets, such a view is only valid while it is being handled
+ * (retain and release have no effect).  Handlers are invoked in the replaying thread.
+ * @author ups
+ */
+public class PacketReplay {
+
+    /**
+     * The complete packet format model used to interpret the packets
+     */
+    private List<PacketModel> model;
+    /**
+     * The directory holding the segment files
+     */
+    private File directory;
+    /**
+     * The name of the log
+     */
+    private String name;
+    /**
+     * The dispatcher distributing packets to the packet handlers
+     */
+    private PacketDispatcher dispatcher;
+    /**
+     * The packet reused as view of every replayed packet
+     */
+    private IncomingPacket view = new IncomingPacket((PacketBufferPool)null);
+
+    /**
+     * Create a replay of a capture log
+     * @param format the packet format of the recorded packets
+     * @param directory the directory storing the segment files
+     * @param name the name of the log
+     */
+    public PacketReplay(PacketFormat format, File directory, String name) {
+        this.model = format.getModel();
+        this.directory = directory;
+        this.name = name;
+        this.dispatcher = new PacketDispatcher(ExecutionMode.PLATFORM,model.size());
+    }
+
+    /**
+     * Add a packet handler for all packets
+     * @param handler the handler, invoked for each replayed packet
+     */
+    public void addPacketHandler(IPacketHandler handler) {
+        dispatcher.addPacketHandler(handler);
+    }
+
+    /**
+     * Add a packet handler for the packets of a single packet type
+     * @param type the token of the packet format
+     * @param handler the handler, invoked for each replayed packet of that format
+     */
+    public void addPacketHandler(PacketType type, IPacketHandler handler) {
+        dispatcher.addPacketHandler(type.getID(), handler);
+    }
+
+    /**
+     * Replay the complete log
+     * @param realTime if true packets are delivered with their recorded timing, otherwise
+     * as fast as possible
+     * @return the number of packets replayed
+     * @throws IOException if the segment files could not be read
+     */
+    public long replay(boolean realTime) throws IOException {
+        long count = 0;
+        long start = System.nanoTime();
+        for(int segment=0; ; segment++) {
+            File file = PacketCapture.segmentFile(directory,name,segment);
+            if(!file.exists()) break;
+            MappedByteBuffer mapped = map(file);
+            if(mapped.remaining()<PacketCapture.SEGMENT_HEADER_SIZE || mapped.getInt(0)!=PacketCapture.SEGMENT_MAGIC)
+                throw new IOException("Not a capture segment: "+file);
+            int index = PacketCapture.SEGMENT_HEADER_SIZE;
+            int limit = mapped.limit();
+            while(limit-index>=PacketCapture.RECORD_HEADER_SIZE+Packet.HEADER_SIZE) {
+                int packet = index+PacketCapture.RECORD_HEADER_SIZE;
+                if(mapped.get(packet)!=Packet.MAGIC) break; // unused end of an unfinished segment
+                int size = Packet.HEADER_SIZE+(((int)mapped.getShort(packet+2))&0xffff);
+                if(packet+size>limit) throw new IOException("Truncated capture segment: "+file);
+                if(realTime) {
+                    long delay = start+mapped.getLong(index)-System.nanoTime();
+                    if(delay>0) LockSupport.parkNanos(delay);
+                }
+                view.view(mapped, packet, model);
+                view.setCorrelation(mapped.getInt(index+8), mapped.get(index+12)!=0);
+                dispatcher.dispatch(view);
+                count++;
+                index = packet+size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Map a segment file into memory
+     * @param file the segment file
+     * @return the mapped contents
+     * @throws IOException if the file could not be read
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * A precomputed token identifying a packet format of a packet format model, obtained
+ * from PacketFormat.type or Packetizer.type.  Using a token instead of the name of the
+ * packet format avoids any lookup by name when creating or testing packets.
+ * @author ups
+ */
+public final class PacketType {
+
+    /**
+     * The ID of the packet format
+     */
+    final int id;
+    /**
+     * The model of the packet format
+     */
+    final PacketModel model;
+
+    /**
+     * Create a packet type token
+     * @param id the ID of the packet format
+     * @param model the model of the packet format
+     */
+    PacketType(int id, PacketModel model) {
+        this.id = id;
+        this.model = model;
+    }
+
+    /**
+     * Get the ID of the packet format
+     * @return the ID, as stored in packets of this format
+     */
+    public int getID() { return id; }
+
+    /**
+     * Get the name of the packet format
+     * @return the name
+     */
+    public String getName() { return model.getName(); }
+
+    /**
+     * Test if a packet is of this format
+     * @param packet the packet to test
+     * @return true if the packet is of this format
+     */
+    public boolean matches(Packet packet) {
+        return packet.getID()==id;
+    }
+
+    /**
+     * For debugging
+     */
+    public String toString() {
+        return "PacketType["+model.getName()+"="+id+"]";
+    }
+}
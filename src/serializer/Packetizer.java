@@ -37,6 +37,7 @@ import serializer.PacketFormat.EnumFieldModel;
 import serializer.PacketFormat.FieldModel;
 import serializer.PacketFormat.IntFieldModel;
 import serializer.PacketFormat.PacketModel;
+import serializer.PacketFormat.VariableFieldModel;
 
 /**
  * Helper object for packing structured data into byte serialized format according to a
@@ -46,17 +47,29 @@ import serializer.PacketFormat.PacketModel;
  */
 public class Packetizer {
 
+    /**
+     * Maximal number of free packets retained per packet format
+     */
+    private static final int POOL_SIZE = 16;
+
     /**
      * The complete packet format model used by this packetizer
      */
-    private List<PacketModel> model;
+    private PacketRegistry model;
+    /**
+     * Pools of recycled outgoing packets, indexed by packet ID
+     */
+    private OutgoingPacketPool[] pools;
     
     /**
      * Create packetizer according to given model
      * @param model the model to use for this packetizer
      */
     public Packetizer(List<PacketModel> model) {
-        this.model = model;
+        this.model = PacketRegistry.of(model);
+        pools = new OutgoingPacketPool[model.size()];
+        for(int id=0; id<pools.length; id++)
+            pools[id] = new OutgoingPacketPool(id,model.get(id),POOL_SIZE);
     }
 
     /**
@@ -67,15 +80,59 @@ public class Packetizer {
      * @return the serialized packet
      */
     public OutgoingPacket makePacket(String name, Object ... arguments) {
-        PacketModel selected = findModel(name);
-        OutgoingPacket result = new OutgoingPacket(model.indexOf(selected),selected);
+        return makePacket(model.type(name),arguments);
+    }
+
+    /**
+     * Create an outgoing packet of the given packet type and data (variable-length fields
+     * are given as short[], int[] or byte[] arrays, and varints as integers)
+     * @param type the token of the specific packet format to use
+     * @param arguments the data to store in the packet, must correspond to format
+     * @return the serialized packet
+     */
+    public OutgoingPacket makePacket(PacketType type, Object ... arguments) {
+        PacketModel selected = type.model;
+        OutgoingPacket result = new OutgoingPacket(type.id,selected);
         int length = selected.fields.size();
         if(arguments.length!=length) throw new Error("Data mismatch");
-        for(int i=0; i<length; i++)
-            encode(selected.fields.get(i),arguments[i],result.getBuffer());
+        for(int i=0; i<length; i++) {
+            FieldModel field = selected.fields.get(i);
+            if(field instanceof VariableFieldModel) encodeVariable(type,(VariableFieldModel)field,arguments[i],result);
+            else if(selected.isPacked()) encodePacked(field,arguments[i],result.getBuffer());
+            else encode(field,arguments[i],result.getBuffer());
+        }
         return result;
     }
 
+    /**
+     * Get a recycled outgoing packet of the given packet format, for writing its fields
+     * using precompiled field handles.  The packet must be released once sent.
+     * @param name the name of the specific packet format to use
+     * @return a pooled packet with the header filled in
+     */
+    public OutgoingPacket acquirePacket(String name) {
+        return pools[model.type(name).id].acquire();
+    }
+
+    /**
+     * Get a recycled outgoing packet of the given packet type, for writing its fields
+     * using precompiled field handles.  The packet must be released once sent.
+     * @param type the token of the specific packet format to use
+     * @return a pooled packet with the header filled in
+     */
+    public OutgoingPacket acquirePacket(PacketType type) {
+        return pools[type.id].acquire();
+    }
+
+    /**
+     * Get the token identifying the packet format of the given name
+     * @param name the name of the packet format
+     * @return the packet type token
+     */
+    public PacketType type(String name) {
+        return model.type(name);
+    }
+
     /**
      * Encode data into buffer according to the format of the field
      * @param field the field specifying the data format
@@ -103,19 +160,67 @@ public class Packetizer {
                 default: throw new Error("Bitsize not supported: "+model.size);
                 }
             }
-            
+            @Override
+            public void dispatchVariableField(VariableFieldModel model) {
+                throw new Error("Variable-length field must be appended: "+model.getName());
+            }
         });
     }
 
     /**
-     * Lookup a specific packet model by name
-     * @param name the name of the packet model
-     * @return the specific model
+     * Encode a specific value into the bits of a field of a bit-packed packet
+     * @param field the field model, with offsets computed
+     * @param argument the value to encode
+     * @param buffer the buffer holding the packet (including header)
      */
-    private PacketModel findModel(String name) {
-        for(PacketModel p: model)
-            if(p.getName().equals(name)) return p;
-        throw new Error("Packet model not found: "+name);
+    private void encodePacked(final FieldModel field, final Object argument, final ByteBuffer buffer) {
+        final int bitOffset = Packet.HEADER_SIZE*8+field.getBitOffset();
+        field.dispatch(new IFieldModelDispatch() {
+            @Override public void dispatchBooleanField(BooleanFieldModel model) {
+                Boolean value = (Boolean)argument;
+                BitField.write(buffer, 0, bitOffset, 1, value.booleanValue() ? 1 : 0);
+            }
+            @Override
+            public void dispatchEnumField(EnumFieldModel model) {
+                String value = (String)argument;
+                BitField.write(buffer, 0, bitOffset, model.getBitWidth(), model.getNames().indexOf(value));
+            }
+            @Override
+            public void dispatchIntField(IntFieldModel model) {
+                BitField.write(buffer, 0, bitOffset, model.size, (Integer)argument);
+            }
+            @Override
+            public void dispatchVariableField(VariableFieldModel model) {
+                throw new Error("Variable-length field must be appended: "+model.getName());
+            }
+        });
+    }
+
+    /**
+     * Append the data of a variable-length field to a packet
+     * @param type the token of the packet format
+     * @param field the field model
+     * @param argument the data to store, an array or, for a varint, an integer
+     * @param packet the packet to append to
+     */
+    private void encodeVariable(PacketType type, VariableFieldModel field, Object argument, OutgoingPacket packet) {
+        FieldHandle handle = type.model.getHandle(type.id, field.getName());
+        if(argument instanceof short[]) packet.put_uint16_array(handle, (short[])argument);
+        else if(argument instanceof int[]) packet.put_int32_array(handle, (int[])argument);
+        else if(argument instanceof byte[]) packet.put_bytes(handle, (byte[])argument);
+        else if(argument instanceof Integer) packet.put_varint(handle, (Integer)argument);
+        else throw new Error("Data mismatch");
+    }
+
+    /**
+     * Resolve a field of a given packet into a handle, for direct access to the field
+     * data in incoming packets
+     * @param packetName the name of the packet
+     * @param fieldName the name of the field
+     * @return the handle of the field
+     */
+    public FieldHandle field(String packetName, String fieldName) {
+        return PacketFormat.field(model,packetName,fieldName);
     }
 
     /**
@@ -125,8 +230,17 @@ public class Packetizer {
      * @return true if it is of the format, false otherwise
      */
     public boolean is(Packet packet, String name) {
-        PacketModel selected = findModel(name);
-        return packet.getID()==model.indexOf(selected);
+        return packet.getID()==model.type(name).id;
+    }
+
+    /**
+     * Test if a given packet is of a given packet type
+     * @param packet the packet to inspect
+     * @param type the token of the packet format
+     * @return true if it is of the format, false otherwise
+     */
+    public boolean is(Packet packet, PacketType type) {
+        return packet.getID()==type.id;
     }
     
 }
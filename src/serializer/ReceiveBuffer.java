@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted receive buffer, shared by the decoder reading data into it and
+ * by all pooled incoming packets that are views of the data.  Returned to its pool
+ * when the last reference is released.
+ * @author ups
+ */
+final class ReceiveBuffer {
+
+    /**
+     * The storage of the buffer, only accessed using absolute operations so that it
+     * can safely be shared by packets handled in different threads
+     */
+    final ByteBuffer buffer;
+    /**
+     * View of the storage used by the decoder for reading data (relative operations)
+     */
+    final ByteBuffer input;
+    /**
+     * The pool that the buffer is returned to
+     */
+    private final PacketBufferPool pool;
+    /**
+     * Number of references to the buffer
+     */
+    private final AtomicInteger references = new AtomicInteger();
+
+    /**
+     * Create a receive buffer
+     * @param pool the pool that the buffer is returned to
+     * @param size the size of the buffer in bytes
+     * @param direct whether to allocate the storage outside of the heap
+     */
+    ReceiveBuffer(PacketBufferPool pool, int size, boolean direct) {
+        this.pool = pool;
+        this.buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        this.input = buffer.duplicate();
+    }
+
+    /**
+     * Get the size of the buffer
+     * @return size in bytes
+     */
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Add a reference to the buffer
+     */
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Remove a reference to the buffer, returning it to the pool if it was the last one
+     */
+    void release() {
+        if(references.decrementAndGet()==0) pool.recycle(this);
+    }
+
+    /**
+     * Test whether the caller holds the only reference to the buffer
+     * @return true if there is exactly one reference
+     */
+    boolean isExclusive() {
+        return references.get()==1;
+    }
+}
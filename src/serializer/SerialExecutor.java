@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor that runs tasks one at a time, in submission order, using an underlying
+ * executor.  At most one task is submitted to the underlying executor at any time,
+ * so the tasks of one serial executor never run concurrently.
+ * @author ups
+ */
+class SerialExecutor implements Executor {
+
+    /**
+     * The underlying executor
+     */
+    private Executor executor;
+    /**
+     * Tasks waiting to be run
+     */
+    private LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    /**
+     * The task currently submitted to the underlying executor, if any
+     */
+    private Runnable active;
+
+    /**
+     * Create a serial executor
+     * @param executor the executor running the tasks
+     */
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queue a task for execution after all previously queued tasks
+     * @param task the task to run
+     */
+    @Override
+    public synchronized void execute(final Runnable task) {
+        tasks.add(new Runnable() {
+            @Override public void run() {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+        if(active==null) scheduleNext();
+    }
+
+    /**
+     * Submit the next queued task to the underlying executor
+     */
+    private synchronized void scheduleNext() {
+        if((active = tasks.poll())!=null) executor.execute(active);
+    }
+}
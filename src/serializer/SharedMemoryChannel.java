@@ -0,0 +1,427 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bidirectional byte channel between two processes on the same host, implemented as
+ * a pair of single-producer single-consumer ring buffers in a memory-mapped file.  Used
+ * as the transport of a Communicator in place of a socket: the packets are framed exactly
+ * as on a socket, but sending and receiving a packet only copies it into or out of the
+ * shared memory, without any system call.
+ * 
+ * One process creates the channel (initializing the file) and the other then opens it.
+ * The creating side writes to the first ring and reads from the second, the opening side
+ * the other way around.  Each ring has a single writer and a single reader: the output
+ * stream must only be used by one thread at a time (a Communicator serializes sending),
+ * and likewise the input stream.  A reader waiting for data first spins, then yields,
+ * and finally parks for short periods, so latency is lowest while data is flowing.
+ * @author ups
+ */
+public final class SharedMemoryChannel implements Closeable {
+
+    /**
+     * Magic number at the start of the file, written once the channel is initialized
+     */
+    private static final int MAGIC = 0x53484d43;
+    /**
+     * Default capacity of each ring, in bytes
+     */
+    public static final int DEFAULT_CAPACITY = 64*1024;
+    /**
+     * Offset of the header of the first ring, the headers of the rings are spaced such
+     * that the indices of the writer and the reader are in separate cache lines
+     */
+    private static final int RING_HEADERS = 64;
+    /**
+     * Size of the header of each ring
+     */
+    private static final int RING_HEADER_SIZE = 192;
+    /**
+     * Offset of the ring data, following the file header and the ring headers
+     */
+    private static final int DATA = 512;
+    /**
+     * Offset in the ring header of the total number of bytes written
+     */
+    private static final int WRITE_INDEX = 0;
+    /**
+     * Offset in the ring header of the total number of bytes read
+     */
+    private static final int READ_INDEX = 64;
+    /**
+     * Offset in the ring header of the flag set when the writer has closed the ring
+     */
+    private static final int WRITER_CLOSED = 128;
+    /**
+     * Offset in the ring header of the flag set when the reader has closed the ring
+     */
+    private static final int READER_CLOSED = 132;
+    /**
+     * Number of times to poll a ring before yielding (spinning only helps when the other
+     * side can run at the same time)
+     */
+    private static final int SPINS = Runtime.getRuntime().availableProcessors()>1 ? 20000 : 0;
+    /**
+     * Number of times to yield before parking
+     */
+    private static final int YIELDS = 200;
+    /**
+     * Time to park between polls once idle, in nanoseconds
+     */
+    private static final long PARK_NANOS = 50000;
+
+    /**
+     * One direction of the channel: a ring buffer with its indices stored in the shared header
+     */
+    private static final class Ring {
+        /**
+         * The mapped file, accessed using absolute indices only
+         */
+        private final ByteBuffer control;
+        /**
+         * Offset of the ring header in the file
+         */
+        private final int header;
+        /**
+         * The ring data, positioned by the local side before each copy
+         */
+        private final ByteBuffer data;
+        /**
+         * Capacity of the ring, a power of two
+         */
+        private final int capacity;
+        /**
+         * Local copy of the index owned by this side (write index for the writer, read index
+         * for the reader), starts at 0 when the channel is created
+         */
+        private long own = 0;
+        /**
+         * Last observed value of the index owned by the other side
+         */
+        private long other = 0;
+
+        /**
+         * Create a view of a ring in the mapped file
+         * @param control the mapped file
+         * @param ring the number of the ring
+         * @param capacity the capacity of the ring
+         */
+        Ring(MappedByteBuffer control, int ring, int capacity) {
+            this.control = control;
+            this.header = RING_HEADERS+ring*RING_HEADER_SIZE;
+            this.capacity = capacity;
+            ByteBuffer region = control.duplicate();
+            region.limit(DATA+(ring+1)*capacity);
+            region.position(DATA+ring*capacity);
+            this.data = region.slice();
+        }
+
+        /**
+         * Initialize the header of the ring
+         */
+        void reset() {
+            control.putLong(header+WRITE_INDEX, 0);
+            control.putLong(header+READ_INDEX, 0);
+            control.putInt(header+WRITER_CLOSED, 0);
+            control.putInt(header+READER_CLOSED, 0);
+        }
+
+        /**
+         * Copy bytes into the ring, waiting for space as long as the ring is full
+         * @param bytes the bytes to write
+         * @param offset index of the first byte to write
+         * @param length number of bytes to write
+         * @param channel the channel owning the ring
+         * @throws IOException if the channel was closed by either side
+         */
+        void write(byte[] bytes, int offset, int length, SharedMemoryChannel channel) throws IOException {
+            int idle = 0;
+            while(length>0) {
+                long available = capacity-(own-other);
+                if(available==0) {
+                    other = control.getLong(header+READ_INDEX);
+                    MemoryFences.loadFence();
+                    available = capacity-(own-other);
+                }
+                if(available==0) {
+                    if(channel.closed || control.getInt(header+READER_CLOSED)!=0)
+                        throw new IOException("Channel closed");
+                    idle(idle++);
+                    continue;
+                }
+                idle = 0;
+                int index = (int)own&(capacity-1);
+                int count = (int)Math.min(Math.min(available, length), capacity-index);
+                data.position(index);
+                data.put(bytes, offset, count);
+                offset += count;
+                length -= count;
+                own += count;
+                // Publish the data before the index
+                MemoryFences.storeFence();
+                control.putLong(header+WRITE_INDEX, own);
+            }
+        }
+
+        /**
+         * Copy bytes out of the ring, waiting for data as long as the ring is empty
+         * @param bytes the array to store the bytes in
+         * @param offset index of the first byte to store
+         * @param length maximal number of bytes to read
+         * @param channel the channel owning the ring
+         * @return number of bytes read, -1 if the ring is empty and closed
+         */
+        int read(byte[] bytes, int offset, int length, SharedMemoryChannel channel) {
+            if(length==0) return 0;
+            int idle = 0;
+            long available = other-own;
+            while(available==0) {
+                other = control.getLong(header+WRITE_INDEX);
+                MemoryFences.loadFence();
+                available = other-own;
+                if(available>0) break;
+                if(channel.closed) return -1;
+                if(control.getInt(header+WRITER_CLOSED)!=0) {
+                    // Data written before closing is published before the flag
+                    MemoryFences.loadFence();
+                    other = control.getLong(header+WRITE_INDEX);
+                    available = other-own;
+                    if(available==0) return -1;
+                    break;
+                }
+                idle(idle++);
+            }
+            int index = (int)own&(capacity-1);
+            int count = (int)Math.min(Math.min(available, length), capacity-index);
+            data.position(index);
+            data.get(bytes, offset, count);
+            own += count;
+            // Finish reading the data before the space is released to the writer
+            MemoryFences.storeFence();
+            control.putLong(header+READ_INDEX, own);
+            return count;
+        }
+
+        /**
+         * Get the number of bytes that can be read without waiting
+         * @return number of bytes
+         */
+        int available() {
+            return (int)(control.getLong(header+WRITE_INDEX)-own);
+        }
+
+        /**
+         * Set one of the closed flags of the ring
+         * @param flag offset of the flag in the ring header
+         */
+        void close(int flag) {
+            MemoryFences.storeFence();
+            control.putInt(header+flag, 1);
+        }
+    }
+
+    /**
+     * The ring that this side writes to
+     */
+    private final Ring out;
+    /**
+     * The ring that this side reads from
+     */
+    private final Ring in;
+    /**
+     * Whether this side has closed the channel
+     */
+    private volatile boolean closed = false;
+    /**
+     * Stream reading from the incoming ring
+     */
+    private final InputStream inputStream = new InputStream() {
+        @Override public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1)==-1 ? -1 : single[0]&0xff;
+        }
+        @Override public int read(byte[] bytes, int offset, int length) throws IOException {
+            return in.read(bytes, offset, length, SharedMemoryChannel.this);
+        }
+        @Override public int available() {
+            return in.available();
+        }
+        @Override public void close() {
+            SharedMemoryChannel.this.close();
+        }
+    };
+    /**
+     * Stream writing to the outgoing ring
+     */
+    private final OutputStream outputStream = new OutputStream() {
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+        @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+            if(closed) throw new IOException("Channel closed");
+            out.write(bytes, offset, length, SharedMemoryChannel.this);
+        }
+        @Override public void close() {
+            SharedMemoryChannel.this.close();
+        }
+    };
+
+    /**
+     * Create a channel side over a mapped file
+     * @param mapped the mapped file
+     * @param capacity the capacity of each ring
+     * @param creator whether this is the creating side
+     */
+    private SharedMemoryChannel(MappedByteBuffer mapped, int capacity, boolean creator) {
+        Ring first = new Ring(mapped, 0, capacity);
+        Ring second = new Ring(mapped, 1, capacity);
+        this.out = creator ? first : second;
+        this.in = creator ? second : first;
+    }
+
+    /**
+     * Create a shared-memory channel with rings of the default capacity, initializing the
+     * file (which is created if needed) so that another process can open it
+     * @param file the file holding the shared memory
+     * @return the creating side of the channel
+     * @throws IOException if the file could not be mapped
+     */
+    public static SharedMemoryChannel create(File file) throws IOException {
+        return create(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a shared-memory channel, initializing the file (which is created if needed)
+     * so that another process can open it.  The file must not be in use by other processes.
+     * @param file the file holding the shared memory
+     * @param capacity the capacity of each ring, in bytes, must be a power of two
+     * @return the creating side of the channel
+     * @throws IOException if the file could not be mapped
+     */
+    public static SharedMemoryChannel create(File file, int capacity) throws IOException {
+        if(capacity<=0 || (capacity&(capacity-1))!=0) throw new Error("Ring capacity must be a power of two: "+capacity);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(DATA+2L*capacity);
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA+2L*capacity);
+            mapped.putInt(4, capacity);
+            SharedMemoryChannel channel = new SharedMemoryChannel(mapped, capacity, true);
+            channel.out.reset();
+            channel.in.reset();
+            // Publish the header before the magic number
+            MemoryFences.storeFence();
+            mapped.putInt(0, MAGIC);
+            return channel;
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+    }
+
+    /**
+     * Open a shared-memory channel created by another process
+     * @param file the file holding the shared memory
+     * @return the opening side of the channel
+     * @throws IOException if the file could not be mapped or is not an initialized channel
+     */
+    public static SharedMemoryChannel open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if(raf.length()<DATA) throw new IOException("Not a shared-memory channel: "+file);
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            if(mapped.getInt(0)!=MAGIC) throw new IOException("Not a shared-memory channel: "+file);
+            MemoryFences.loadFence();
+            int capacity = mapped.getInt(4);
+            if(raf.length()!=DATA+2L*capacity) throw new IOException("Not a shared-memory channel: "+file);
+            return new SharedMemoryChannel(mapped, capacity, false);
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+    }
+
+    /**
+     * Wait for a ring while it is full or empty: spin, then yield, then park
+     * @param idle the number of times the ring has been polled without progress
+     */
+    private static void idle(int idle) {
+        if(idle<SPINS) return;
+        if(idle<SPINS+YIELDS)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(PARK_NANOS);
+    }
+
+    /**
+     * Get the stream reading the bytes sent by the other side
+     * @return the input stream
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * Get the stream writing bytes to the other side
+     * @return the output stream
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Close the channel: the other side reads end of stream once it has read all data sent
+     * so far, and fails when writing.  Reading on this side ends immediately.
+     */
+    @Override
+    public void close() {
+        if(closed) return;
+        closed = true;
+        out.close(WRITER_CLOSED);
+        in.close(READER_CLOSED);
+    }
+
+    /**
+     * Whether this side has closed the channel
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Helper class: provides the executor shared by all communicators for running tasks in
+ * virtual threads.  Virtual threads are looked up reflectively so that the framework also
+ * runs on older Java runtimes, in which case a cached pool of daemon threads is used.
+ * @author ups
+ */
+final class VirtualThreads {
+
+    /**
+     * The shared executor, created on first use
+     */
+    private static ExecutorService executor;
+
+    /**
+     * Not instantiable
+     */
+    private VirtualThreads() { }
+
+    /**
+     * Get the shared executor that starts a new virtual thread for every task
+     * @return the executor
+     */
+    static synchronized ExecutorService executor() {
+        if(executor==null) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                executor = (ExecutorService)factory.invoke(null);
+            } catch (NoSuchMethodException e) {
+                executor = fallback();
+            } catch (InvocationTargetException e) {
+                // Virtual threads present but not enabled (preview feature)
+                executor = fallback();
+            } catch (IllegalAccessException e) {
+                throw new Error("Unable to create virtual thread executor: "+e);
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Create the executor used when virtual threads are not available
+     * @return a cached pool of daemon threads
+     */
+    private static ExecutorService fallback() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,180 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import serializer.PacketFormat.PacketModel;
+
+/**
+ * Stream decoder for zero-copy reception: data is read directly into a pooled receive
+ * buffer, and packets are delimited using the packet header and handed out as pooled
+ * views of the buffer.  Only a partial packet left at the end of a buffer is ever copied,
+ * into the start of the next buffer.  The current buffer is given back as soon as it holds
+ * no partial packet, so idle connections do not hold on to a buffer.
+ * 
+ * Usage: obtain a buffer with receiveBuffer, read data into it, report the number of bytes
+ * read with received, and then extract packets with next until it returns null.
+ * @author ups
+ */
+class ZeroCopyDecoder {
+
+    /**
+     * Minimal free space offered for each read
+     */
+    private static final int MIN_READ = 512;
+
+    /**
+     * The complete packet format model used to interpret incoming packets
+     */
+    private List<PacketModel> model;
+    /**
+     * The pool providing buffers and packet objects
+     */
+    private PacketBufferPool pool;
+    /**
+     * The buffer currently being read into, null if none is held
+     */
+    private ReceiveBuffer current;
+    /**
+     * Index of the first unconsumed byte in the current buffer
+     */
+    private int readPos = 0;
+    /**
+     * Index after the last byte read into the current buffer
+     */
+    private int writePos = 0;
+    /**
+     * Correlation ID of the next packet, 0 if not correlated
+     */
+    private int correlation = 0;
+    /**
+     * True if the next packet is a response
+     */
+    private boolean response = false;
+
+    /**
+     * Create a decoder
+     * @param model the complete packet format model
+     * @param pool the pool providing buffers and packet objects
+     */
+    ZeroCopyDecoder(List<PacketModel> model, PacketBufferPool pool) {
+        this.model = model;
+        this.pool = pool;
+    }
+
+    /**
+     * Get the buffer that the next read must store its data in, positioned at the
+     * location where data is to be stored and with at least some free space remaining
+     * @return the buffer to read into
+     */
+    ByteBuffer receiveBuffer() {
+        int pending = writePos-readPos;
+        int required = MIN_READ;
+        if(pending>0) {
+            // The length is found in the packet header, after the correlation prefix if any
+            byte magic = current.buffer.get(readPos);
+            int header = magic==Packet.REQUEST_MAGIC || magic==Packet.RESPONSE_MAGIC ? Packet.CORRELATION_SIZE : 0;
+            if(pending>=header+Packet.HEADER_SIZE)
+                required = Math.max(required, header+Packet.HEADER_SIZE+(((int)current.buffer.getShort(readPos+header+2))&0xffff)-pending);
+        }
+        if(current==null) {
+            current = pool.acquireBuffer(required);
+            readPos = writePos = 0;
+        } else if(current.capacity()-writePos<required) {
+            if(current.isExclusive() && pending+required<=current.capacity()) {
+                // No packets refer to the buffer, compact it in place
+                current.input.limit(writePos).position(readPos);
+                current.input.compact();
+            } else {
+                ReceiveBuffer next = pool.acquireBuffer(pending+required);
+                current.input.limit(writePos).position(readPos);
+                next.input.clear();
+                next.input.put(current.input);
+                current.release();
+                current = next;
+            }
+            readPos = 0;
+            writePos = pending;
+        }
+        ByteBuffer input = current.input;
+        input.limit(input.capacity()).position(writePos);
+        return input;
+    }
+
+    /**
+     * Report the number of bytes read into the receive buffer
+     * @param count number of bytes read
+     */
+    void received(int count) {
+        writePos += count;
+    }
+
+    /**
+     * Extract the next complete packet
+     * @return the next packet (leased to the caller), or null if no complete packet has been received
+     */
+    IncomingPacket next() {
+        int pending = writePos-readPos;
+        byte magic = pending>0 ? current.buffer.get(readPos) : 0;
+        if(magic==Packet.REQUEST_MAGIC || magic==Packet.RESPONSE_MAGIC) {
+            if(pending<Packet.CORRELATION_SIZE) return null;
+            correlation = current.buffer.getInt(readPos+1);
+            response = magic==Packet.RESPONSE_MAGIC;
+            readPos += Packet.CORRELATION_SIZE;
+            pending -= Packet.CORRELATION_SIZE;
+        }
+        if(pending<Packet.HEADER_SIZE) {
+            if(pending==0) close();
+            return null;
+        }
+        ByteBuffer buffer = current.buffer;
+        if(buffer.get(readPos)!=Packet.MAGIC) throw new Error("Illegal packet");
+        int length = Packet.HEADER_SIZE+(((int)buffer.getShort(readPos+2))&0xffff);
+        if(pending<length) return null;
+        IncomingPacket packet = pool.acquirePacket();
+        packet.wrap(current, readPos, model);
+        packet.setCorrelation(correlation, response);
+        correlation = 0;
+        response = false;
+        readPos += length;
+        return packet;
+    }
+
+    /**
+     * Give back the current buffer, discarding any partial packet
+     */
+    void close() {
+        if(current!=null) current.release();
+        current = null;
+        readPos = writePos = 0;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package serializer.test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import examples.communication.MobileRobotComm;
+import serializer.Communicator;
+import serializer.ExecutionMode;
+import serializer.FieldHandle;
+import serializer.FlushPolicy;
+import serializer.IPacketHandler;
+import serializer.IncomingPacket;
+import serializer.OutgoingPacket;
+import serializer.PacketBufferPool;
+import serializer.PacketFormat;
+import serializer.PacketType;
+import serializer.Packetizer;
+
+/**
+ * Benchmark the encoding, decoding, and dispatching paths of the serializer: the running
+ * time and the number of bytes allocated per operation are reported for each experiment, so
+ * that optimizations can be compared against a baseline.  Allocation is measured using the
+ * thread allocation counters of the HotSpot virtual machine (summed over all threads, so
+ * the reception threads of communicators are included), and reported as unavailable on
+ * other virtual machines.
+ * @author ups
+ */
+public class Benchmark {
+
+    /**
+     * Run the benchmark according to a hard-coded set of parameters
+     */
+    public static void main(String argv[]) throws IOException {
+        new Benchmark().main(5,1000000);
+    }
+
+    /**
+     * An experiment: an operation that can be repeated any number of times
+     */
+    private static abstract class Experiment {
+        private String name;
+        public Experiment(String name) { this.name = name; }
+        public String toString() { return name; }
+        /**
+         * Prepare the experiment, before it is run for the first time
+         */
+        public void setUp() throws IOException { }
+        /**
+         * Run the operation of the experiment the given number of times
+         * @param ops number of operations
+         */
+        public abstract void run(int ops) throws IOException;
+        /**
+         * Get the number of operations actually performed when running the experiment
+         * @param ops number of operations requested
+         * @return number of operations performed
+         */
+        public int performed(int ops) { return ops; }
+        /**
+         * Release any resources held by the experiment
+         */
+        public void tearDown() throws IOException { }
+    }
+
+    /**
+     * Sink for results computed by the experiments, prevents the computations from being optimized away
+     */
+    private static volatile long sink;
+
+    private final PacketFormat format = new MobileRobotComm.MRPacket();
+    private final Packetizer packetizer = new Packetizer(format.getModel());
+    private final PacketType drive = packetizer.type("drive");
+    private final FieldHandle leftSpeed = packetizer.field("drive","leftSpeed");
+    private final FieldHandle rightSpeed = packetizer.field("drive","rightSpeed");
+    private final byte[] driveBytes = packetizer.makePacket("drive",100,200).getAllBytes();
+
+    /**
+     * Run each experiment
+     * @param rounds how many times to measure each experiment (the first round is warm-up)
+     * @param ops how many operations to perform in each round
+     */
+    private void main(int rounds, int ops) throws IOException {
+        for(Experiment e: createExperiments()) {
+            e.setUp();
+            try {
+                e.run(ops); // warm-up
+                long time = 0, bytes = 0;
+                for(int i=1; i<rounds; i++) {
+                    long allocated = allocatedBytes();
+                    long start = System.nanoTime();
+                    e.run(ops);
+                    time += System.nanoTime()-start;
+                    bytes += allocatedBytes()-allocated;
+                }
+                long total = (long)(rounds-1)*e.performed(ops);
+                System.out.println("Time for "+e+": "+(double)time/total+"ns/op, "
+                        +(bytes<0 ? "allocation not available" : (double)bytes/total+" bytes/op"));
+            } finally {
+                e.tearDown();
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes allocated by all live threads
+     * @return number of bytes, negative if not available
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)threads;
+        if(!hotspot.isThreadAllocatedMemoryEnabled()) return -1;
+        long total = 0;
+        for(long bytes: hotspot.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            if(bytes>0) total += bytes;
+        return total;
+    }
+
+    /**
+     * Create the experiments
+     * @return the list of experiments
+     */
+    private List<Experiment> createExperiments() {
+        List<Experiment> result = new ArrayList<Experiment>();
+        result.add(new Experiment("Packetizer.makePacket(String)") {
+            public void run(int ops) {
+                long sum = 0;
+                for(int i=0; i<ops; i++) sum += packetizer.makePacket("drive",i&0xffff,100).getID();
+                sink = sum;
+            }
+        });
+        result.add(new Experiment("Packetizer.makePacket(PacketType)") {
+            public void run(int ops) {
+                long sum = 0;
+                for(int i=0; i<ops; i++) sum += packetizer.makePacket(drive,i&0xffff,100).getID();
+                sink = sum;
+            }
+        });
+        result.add(new Experiment("Packetizer.acquirePacket + put + release") {
+            public void run(int ops) {
+                long sum = 0;
+                for(int i=0; i<ops; i++) {
+                    OutgoingPacket packet = packetizer.acquirePacket(drive).put_uint16(leftSpeed,i).put_uint16(rightSpeed,100);
+                    sum += packet.getID();
+                    packet.release();
+                }
+                sink = sum;
+            }
+        });
+        result.add(new Experiment("new IncomingPacket + get_uint16(String)") {
+            public void run(int ops) {
+                long sum = 0;
+                for(int i=0; i<ops; i++) {
+                    IncomingPacket packet = new IncomingPacket(driveBytes,format.getModel());
+                    sum += packet.get_uint16("leftSpeed")+packet.get_uint16("rightSpeed");
+                }
+                sink = sum;
+            }
+        });
+        result.add(new Experiment("IncomingPacket.get_uint16(FieldHandle)") {
+            private IncomingPacket packet = new IncomingPacket(driveBytes,format.getModel());
+            public void run(int ops) {
+                long sum = 0;
+                for(int i=0; i<ops; i++) sum += packet.get_uint16(leftSpeed)+packet.get_uint16(rightSpeed);
+                sink = sum;
+            }
+        });
+        result.add(new Experiment("PacketFormat build + offset computation") {
+            public void run(int ops) {
+                long sum = 0;
+                for(int i=0; i<performed(ops); i++) sum += new MobileRobotComm.MRPacket().field("drive","rightSpeed").getOffset();
+                sink = sum;
+            }
+            public int performed(int ops) { return ops/100; } // building a format is slow
+        });
+        result.add(new Loopback("Communicator loopback, immediate", FlushPolicy.IMMEDIATE, null));
+        result.add(new Loopback("Communicator loopback, batched", FlushPolicy.delay(FlushPolicy.DEFAULT_MAX_DELAY), null));
+        result.add(new Loopback("Communicator loopback, batched, zero-copy", FlushPolicy.delay(FlushPolicy.DEFAULT_MAX_DELAY), new PacketBufferPool(4)));
+        return result;
+    }
+
+    /**
+     * Experiment measuring the throughput of sending packets to a communicator through a local
+     * socket pair, each operation is a packet sent and dispatched to a handler
+     */
+    private class Loopback extends Experiment {
+        private FlushPolicy policy;
+        private PacketBufferPool pool;
+        private Communicator sender, receiver;
+        private Socket senderSocket, receiverSocket;
+        private AtomicLong received = new AtomicLong();
+        public Loopback(String name, FlushPolicy policy, PacketBufferPool pool) {
+            super(name);
+            this.policy = policy;
+            this.pool = pool;
+        }
+        public void setUp() throws IOException {
+            ServerSocket server = new ServerSocket(0);
+            senderSocket = new Socket("localhost", server.getLocalPort());
+            receiverSocket = server.accept();
+            server.close();
+            sender = new Communicator(format, senderSocket, ExecutionMode.VIRTUAL_INLINE);
+            sender.setFlushPolicy(policy);
+            receiver = new Communicator(format, receiverSocket, ExecutionMode.VIRTUAL_INLINE, pool);
+            receiver.addPacketHandler(drive, new IPacketHandler() {
+                @Override public void handlePacket(IncomingPacket packet) {
+                    received.incrementAndGet();
+                }
+            });
+        }
+        public void run(int ops) throws IOException {
+            long target = received.get()+ops;
+            for(int i=0; i<ops; i++) {
+                OutgoingPacket packet = packetizer.acquirePacket(drive).put_uint16(leftSpeed,i).put_uint16(rightSpeed,100);
+                sender.send(packet);
+                packet.release();
+            }
+            sender.flush();
+            while(received.get()<target) Thread.yield();
+        }
+        public void tearDown() throws IOException {
+            // Signal end of stream in both directions, letting both reception threads terminate
+            senderSocket.shutdownOutput();
+            receiverSocket.shutdownOutput();
+            try {
+                while(!sender.isClosed() || !receiver.isClosed()) Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new Error("Interrupted");
+            } finally {
+                senderSocket.close();
+                receiverSocket.close();
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ import java.util.Random;
 
 import statemachine.year1.library.Event;
 import statemachine.year1.library.IMachine;
+import statemachine.year3.dsl.CompiledMachine;
+import statemachine.year3.dsl.MachinePopulation;
 
 /**
  * Benchmark the running times of the various state machine implementations, using randomized
@@ -20,9 +22,37 @@ public class Benchmark {
 	 * Run the benchmark according to a hard-coded set of parameters
 	 */
 	public static void main(String argv[]) {
+		checkFreshMachines();
 		new Benchmark().main(10000,2000,87);
 	}
 
+	/**
+	 * Check that machines react to their first event even when no event of that name has
+	 * been created before the machine was initialized (must run before any machine is created)
+	 */
+	private static void checkFreshMachines() {
+		checkFirstEvent(new statemachine.year2.microwaveoven.MicrowaveMachine(), "START", "COOKING");
+		checkFirstEvent(new statemachine.year3.cookinghood.CookingHoodMachine(), "PLUS", "POWER_ON");
+		MachinePopulation population = new MachinePopulation(new CompiledMachine(new statemachine.year3.cdplayer.CDPlayerMachine()), 2);
+		population.processEvent(new Event("PLAY").id());
+		int track = population.getMachine().getVariableIndex("track");
+		if(!population.getStateName(1).equals("PLAYING") || population.getVariable(1, track)!=1)
+			throw new Error("Machine population ignored its first event PLAY");
+	}
+
+	/**
+	 * Initialize the machine, then deliver an event to it and check the resulting state
+	 * @param machine the machine to check
+	 * @param event the name of the event to deliver
+	 * @param expected the name of the state the machine must be in afterwards
+	 */
+	private static void checkFirstEvent(IMachine machine, String event, String expected) {
+		machine.initialize();
+		machine.processEvent(new Event(event));
+		if(!machine.getStateName().equals(expected))
+			throw new Error(machine.getClass().getCanonicalName()+" ignored its first event "+event);
+	}
+
 	/**
 	 * Run each experiment according to the parameters
 	 * @param loops how many times to loop each experiment
@@ -83,17 +113,26 @@ public class Benchmark {
 	private class Experiment {
 		private IMachine machine;
 		private Event[] events;
-		public Experiment(IMachine machine, Event[] events) {
+		private int[] ids;
+		public Experiment(IMachine machine, Event[] events, boolean batch) {
 			this.machine = machine; this.events = events;
+			if(batch) {
+				ids = new int[events.length];
+				for(int i=0; i<events.length; i++) ids[i] = events[i].id();
+			}
 			machine.initialize();
 		}
 		public String toString() {
-			return machine.getClass().getCanonicalName();
+			return machine.getClass().getCanonicalName()+(ids==null ? "" : " (batch)");
 		}
 		/**
-		 * Run a single experiment
+		 * Run a single experiment, either event by event or as a single batch
 		 */
 		public void run() {
+			if(ids!=null) {
+				machine.processEvents(ids, 0, ids.length);
+				return;
+			}
 			for(int i=0; i<events.length; i++)
 				machine.processEvent(events[i]);
 		}
@@ -129,13 +168,15 @@ public class Benchmark {
 	}
 
 	/**
-	 * Insert experiments for each machine and event combination
+	 * Insert experiments for each machine and event combination, processing the events
+	 * both one at a time and as a batch
 	 * @param result list to insert experiments into
 	 * @param machines the machines to generate experiments for
 	 * @param events the events to include in each experiment
 	 */
 	private void insertExperiments(List<Experiment> result, List<IMachine> machines, Event[] events) {
-		for(IMachine m: machines) result.add(new Experiment(m,events));
+		for(IMachine m: machines) result.add(new Experiment(m,events,false));
+		for(IMachine m: machines) result.add(new Experiment(m,events,true));
 	}
 
 	/**
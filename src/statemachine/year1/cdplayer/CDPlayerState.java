@@ -29,7 +29,7 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.cdplayer;
 
-import statemachine.year1.library.Event;
+import statemachine.year1.library.EventAlphabet;
 import statemachine.year1.library.State;
 
 /**
@@ -39,6 +39,16 @@ import statemachine.year1.library.State;
  */
 public abstract class CDPlayerState extends State {
 
+    /**
+     * IDs of the events understood by the states
+     */
+    protected static final int PLAY = EventAlphabet.intern("PLAY");
+    protected static final int PAUSE = EventAlphabet.intern("PAUSE");
+    protected static final int STOP = EventAlphabet.intern("STOP");
+    protected static final int TRACK_END = EventAlphabet.intern("TRACK_END");
+    protected static final int FORWARD = EventAlphabet.intern("FORWARD");
+    protected static final int BACK = EventAlphabet.intern("BACK");
+
     public CDPlayerState(CDPlayerMachine machine) {
         super(machine);
     }
@@ -48,11 +58,11 @@ public abstract class CDPlayerState extends State {
         return (CDPlayerMachine)super.machine();
     }
     
-    protected void processIfForwardOrBack(Event event) {
-        if(event.code().equals("FORWARD")) {
+    protected void processIfForwardOrBack(int event) {
+        if(event==FORWARD) {
             machine().setTrack(machine().getTrack()+1);
         }
-        else if(event.code().equals("BACK")) {
+        else if(event==BACK) {
             if(machine().getTrack()>1)
                 machine().setTrack(machine().getTrack()-1);
         }
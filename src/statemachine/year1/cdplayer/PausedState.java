@@ -29,8 +29,6 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.cdplayer;
 
-import statemachine.year1.library.Event;
-
 public class PausedState extends CDPlayerState {
 
     public PausedState(CDPlayerMachine machine) {
@@ -38,11 +36,11 @@ public class PausedState extends CDPlayerState {
     }
 
     @Override
-    public void processEvent(Event event) {
-        if(event.code().equals("PLAY")) {
+    public void processEvent(int event) {
+        if(event==PLAY) {
             machine().setState(machine().PLAYING_STATE);
         } 
-        else if(event.code().equals("STOP")) {
+        else if(event==STOP) {
             machine().setTrack(0);
             machine().setState(machine().STOPPED_STATE);
         }
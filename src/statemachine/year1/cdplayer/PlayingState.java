@@ -29,8 +29,6 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.cdplayer;
 
-import statemachine.year1.library.Event;
-
 public class PlayingState extends CDPlayerState {
 
     public PlayingState(CDPlayerMachine machine) {
@@ -38,15 +36,15 @@ public class PlayingState extends CDPlayerState {
     }
 
     @Override
-    public void processEvent(Event event) {
-        if(event.code().equals("PAUSE")) {
+    public void processEvent(int event) {
+        if(event==PAUSE) {
             machine().setState(machine().PAUSED_STATE);
         } 
-        else if(event.code().equals("STOP")) {
+        else if(event==STOP) {
             machine().setTrack(0);
             machine().setState(machine().STOPPED_STATE);
         }
-        else if(event.code().equals("TRACK_END")) {
+        else if(event==TRACK_END) {
             machine().setTrack(machine().getTrack()+1);
         }
         else
@@ -29,8 +29,6 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.cdplayer;
 
-import statemachine.year1.library.Event;
-
 public class StoppedState extends CDPlayerState {
 
     public StoppedState(CDPlayerMachine machine) {
@@ -38,8 +36,8 @@ public class StoppedState extends CDPlayerState {
     }
 
     @Override
-    public void processEvent(Event event) {
-        if(event.code().equals("PLAY")) {
+    public void processEvent(int event) {
+        if(event==PLAY) {
             if(machine().getTrack()==0)
                 machine().setTrack(1);
             machine().setState(machine().PLAYING_STATE);
@@ -29,6 +29,7 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.cookinghood;
 
+import statemachine.year1.library.EventAlphabet;
 import statemachine.year1.library.State;
 
 /**
@@ -37,6 +38,12 @@ import statemachine.year1.library.State;
  */
 public abstract class CookingHoodState extends State {
 
+    /**
+     * IDs of the events understood by the states
+     */
+    protected static final int PLUS = EventAlphabet.intern("PLUS");
+    protected static final int MINUS = EventAlphabet.intern("MINUS");
+
     public CookingHoodState(CookingHoodMachine machine) {
         super(machine);
     }
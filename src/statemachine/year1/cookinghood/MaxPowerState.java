@@ -29,7 +29,7 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.cookinghood;
 
-import statemachine.year1.library.Event;
+import statemachine.year1.library.EventAlphabet;
 
 public class MaxPowerState extends CookingHoodState {
 
@@ -38,16 +38,16 @@ public class MaxPowerState extends CookingHoodState {
     }
 
     @Override
-    public void processEvent(Event event) {
-        if(event.code().equals("PLUS")) {
+    public void processEvent(int event) {
+        if(event==PLUS) {
             // ignore
         } 
-        else if(event.code().equals("MINUS")) {
+        else if(event==MINUS) {
             machine().setPower(CookingHoodMachine.MAX_POWER);
             machine().setState(machine().POWER_ON_STATE);
         }
         else
-            throw new Error("Unknown event: "+event);
+            throw new Error("Unknown event: "+EventAlphabet.name(event));
     }
 
 }
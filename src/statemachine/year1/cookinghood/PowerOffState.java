@@ -29,7 +29,7 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.cookinghood;
 
-import statemachine.year1.library.Event;
+import statemachine.year1.library.EventAlphabet;
 
 public class PowerOffState extends CookingHoodState {
 
@@ -38,16 +38,16 @@ public class PowerOffState extends CookingHoodState {
     }
 
     @Override
-    public void processEvent(Event event) {
-        if(event.code().equals("PLUS")) {
+    public void processEvent(int event) {
+        if(event==PLUS) {
             machine().setPower(CookingHoodMachine.MIN_POWER);
             machine().setState(machine().POWER_ON_STATE);
         } 
-        else if(event.code().equals("MINUS")) {
+        else if(event==MINUS) {
             // ignore
         }
         else
-            throw new Error("Unknown event: "+event);
+            throw new Error("Unknown event: "+EventAlphabet.name(event));
     }
 
 }
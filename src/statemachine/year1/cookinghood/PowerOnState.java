@@ -29,7 +29,7 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.cookinghood;
 
-import statemachine.year1.library.Event;
+import statemachine.year1.library.EventAlphabet;
 
 public class PowerOnState extends CookingHoodState {
 
@@ -38,21 +38,21 @@ public class PowerOnState extends CookingHoodState {
     }
 
     @Override
-    public void processEvent(Event event) {
-        if(event.code().equals("PLUS")) {
+    public void processEvent(int event) {
+        if(event==PLUS) {
             if(machine().getPower()==CookingHoodMachine.MAX_POWER)
                 machine().setState(machine().MAX_POWER_STATE);
             else
                 machine().setPower(machine().getPower()+1);
         } 
-        else if(event.code().equals("MINUS")) {
+        else if(event==MINUS) {
             if(machine().getPower()==CookingHoodMachine.MIN_POWER)
                 machine().setState(machine().POWER_OFF_STATE);
             else
                 machine().setPower(machine().getPower()-1);
         }
         else
-            throw new Error("Unknown event: "+event);
+            throw new Error("Unknown event: "+EventAlphabet.name(event));
     }
 
 }
@@ -39,6 +39,10 @@ public class Event {
 	 * The code of the event, represented as a string
 	 */
     private String code;
+    /**
+     * The ID of the event code in the shared event alphabet
+     */
+    private final int id;
     
     /**
      * Construct event with the given code
@@ -46,6 +50,7 @@ public class Event {
      */
     public Event(String code) {
         this.code = code;
+        this.id = EventAlphabet.intern(code);
     }
     
     /**
@@ -56,4 +61,12 @@ public class Event {
         return code;
     }
 
+    /**
+     * Get the ID representing the event code, as assigned by the event alphabet
+     * @return the event ID
+     */
+    public int id() {
+        return id;
+    }
+
 }
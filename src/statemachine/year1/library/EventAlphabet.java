@@ -0,0 +1,110 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package statemachine.year1.library;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The alphabet of event names shared by all state machines: interns each event name as
+ * a dense integer ID (0, 1, 2, ... in order of first use), so that state machines can
+ * dispatch events by indexing arrays instead of hashing or comparing strings.  Event
+ * objects carry the ID of their name, and IMachine.processEvent(int) accepts IDs directly.
+ * @author ups
+ */
+public final class EventAlphabet {
+
+    /**
+     * Map from event names to IDs
+     */
+    private static final Map<String,Integer> ids = new HashMap<String,Integer>();
+    /**
+     * Event names indexed by ID (replaced when grown, so it can be read without locking)
+     */
+    private static volatile String[] names = new String[16];
+    /**
+     * Number of event names interned
+     */
+    private static volatile int size = 0;
+
+    /**
+     * Not instantiable
+     */
+    private EventAlphabet() { }
+
+    /**
+     * Get the ID of an event name, assigning the next free ID if the name is new
+     * @param name the event name
+     * @return the ID of the event name
+     */
+    public static synchronized int intern(String name) {
+        if(name==null) throw new Error("Illegal null event");
+        Integer id = ids.get(name);
+        if(id!=null) return id;
+        int fresh = size;
+        if(fresh==names.length) {
+            String[] grown = new String[fresh*2];
+            System.arraycopy(names, 0, grown, 0, fresh);
+            names = grown;
+        }
+        names[fresh] = name;
+        ids.put(name, fresh);
+        size = fresh+1;
+        return fresh;
+    }
+
+    /**
+     * Get the ID of an event name without interning it
+     * @param name the event name
+     * @return the ID of the event name, -1 if not interned
+     */
+    public static synchronized int lookup(String name) {
+        Integer id = ids.get(name);
+        return id==null ? -1 : id;
+    }
+
+    /**
+     * Get the name of an event ID
+     * @param id the ID of the event
+     * @return the event name
+     */
+    public static String name(int id) {
+        if(id<0 || id>=size) throw new Error("Illegal event ID: "+id);
+        return names[id];
+    }
+
+    /**
+     * Get the number of event names interned so far, all IDs are below this number
+     * @return number of event names
+     */
+    public static int size() {
+        return size;
+    }
+}
@@ -31,8 +31,6 @@ package statemachine.year1.library;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.Observable;
-import java.util.Observer;
 
 import quickqui.QuickGUI;
 
@@ -40,7 +38,7 @@ import quickqui.QuickGUI;
  * Generic infrastructure for having a GUI for a state machine
  * @author ups
  */
-public abstract class GraphicalMachine implements ActionListener, Observer {
+public abstract class GraphicalMachine implements ActionListener, StateListener {
 	/**
 	 * The GUI of the machine
 	 */
@@ -64,7 +62,7 @@ public abstract class GraphicalMachine implements ActionListener, Observer {
         this.gui = new QuickGUI(model,this);
         this.machine = machine;
         this.powerOnCommand = powerOnCommand;
-        this.machine.addObserver(this);
+        this.machine.addListener(this);
     }
 
     /**
@@ -83,8 +81,8 @@ public abstract class GraphicalMachine implements ActionListener, Observer {
      * Handle events generated by the state machine
      */
     @Override
-    public void update(Observable o, Object arg) {
-        if(!(o==machine)) throw new Error("Inconsistent observer notification");
+    public void stateChanged(IMachine source, String fromState, int event, String toState) {
+        if(!(source==machine)) throw new Error("Inconsistent listener notification");
         this.update();
     }
 
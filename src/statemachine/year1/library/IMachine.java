@@ -29,7 +29,7 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.library;
 
-import java.util.Observer;
+import java.util.concurrent.Executor;
 
 /**
  * Generic interface for state machine implementations, allowing them to be reused between iterations
@@ -47,10 +47,35 @@ public interface IMachine {
      */
     public void processEvent(Event event);
     /**
-     * Add an observer to the state machine, notified whenever the state changes
-     * @param observer the statemachine observer
+     * Process a single event given by its ID in the event alphabet (avoids string comparisons)
+     * @param event the ID of an event, delivered to the state machine
      */
-    public void addObserver(Observer observer);
+    public void processEvent(int event);
+    /**
+     * Process a batch of events, notifying each listener at most once for the whole batch
+     * @param events IDs of events, as assigned by the event alphabet
+     * @param from index of the first event to process
+     * @param to index after the last event to process
+     */
+    public void processEvents(int[] events, int from, int to);
+    /**
+     * Add a listener to the state machine, notified whenever an event has been processed
+     * @param listener the statemachine listener
+     */
+    public void addListener(StateListener listener);
+    /**
+     * Add a listener to the state machine, notified only for the given state and event
+     * @param listener the statemachine listener
+     * @param stateMaybe only notify when this state is entered, null for any
+     * @param event only notify for the event with this ID in the event alphabet, -1 for any
+     * @param executorMaybe deliver notifications through this executor, null for synchronous delivery
+     */
+    public void addListener(StateListener listener, String stateMaybe, int event, Executor executorMaybe);
+    /**
+     * Remove a listener from the state machine
+     * @param listener the statemachine listener
+     */
+    public void removeListener(StateListener listener);
     /**
      * Get the name of the currently active state
      * @return name of currently active state
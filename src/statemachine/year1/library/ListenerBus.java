@@ -0,0 +1,206 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package statemachine.year1.library;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The listeners of a state machine.  Registrations are kept in an array that is replaced
+ * atomically on each update, so publishing never takes a lock and costs a single volatile
+ * read when there are no listeners.  Each registration may filter on the state entered
+ * and on the event, and may deliver through an executor instead of on the calling thread.
+ * @author ups
+ */
+public final class ListenerBus {
+
+    /**
+     * A listener together with its filters and delivery mode
+     */
+    private static final class Registration {
+        /**
+         * The listener
+         */
+        final StateListener listener;
+        /**
+         * Name of the state that must be entered, null for any
+         */
+        final String state;
+        /**
+         * Event alphabet ID of the event that must be processed, -1 for any
+         */
+        final int event;
+        /**
+         * Executor used for delivery, null to deliver on the calling thread
+         */
+        final Executor executor;
+        Registration(StateListener listener, String state, int event, Executor executor) {
+            this.listener = listener; this.state = state; this.event = event; this.executor = executor;
+        }
+    }
+
+    /**
+     * The current registrations
+     */
+    private final AtomicReference<Registration[]> registrations = new AtomicReference<Registration[]>(new Registration[0]);
+
+    /**
+     * Add a listener
+     * @param listener the listener
+     * @param stateMaybe only notify when this state is entered, null for any
+     * @param event only notify for the event with this event alphabet ID, -1 for any
+     * @param executorMaybe deliver through this executor, null to deliver on the thread processing the event
+     */
+    public void add(StateListener listener, String stateMaybe, int event, Executor executorMaybe) {
+        if(listener==null) throw new NullPointerException();
+        if(event<-1) throw new Error("Illegal event ID: "+event);
+        Registration registration = new Registration(listener, stateMaybe, event, executorMaybe);
+        while(true) {
+            Registration[] current = registrations.get();
+            Registration[] grown = new Registration[current.length+1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[current.length] = registration;
+            if(registrations.compareAndSet(current, grown)) return;
+        }
+    }
+
+    /**
+     * Remove all registrations of a listener
+     * @param listener the listener
+     */
+    public void remove(StateListener listener) {
+        while(true) {
+            Registration[] current = registrations.get();
+            int kept = 0;
+            for(Registration r: current)
+                if(r.listener!=listener) kept++;
+            if(kept==current.length) return;
+            Registration[] shrunk = new Registration[kept];
+            int i = 0;
+            for(Registration r: current)
+                if(r.listener!=listener) shrunk[i++] = r;
+            if(registrations.compareAndSet(current, shrunk)) return;
+        }
+    }
+
+    /**
+     * Check whether there are no listeners, in which case publishing can be skipped
+     * @return true if there are no listeners
+     */
+    public boolean isEmpty() {
+        return registrations.get().length==0;
+    }
+
+    /**
+     * Check whether any listener filters on a state, in which case publishing a batch requires
+     * the state after each event
+     * @return true if a listener filters on a state
+     */
+    public boolean hasStateFilters() {
+        for(Registration r: registrations.get())
+            if(r.state!=null) return true;
+        return false;
+    }
+
+    /**
+     * Notify the listeners whose filters match
+     * @param machine the state machine
+     * @param fromState name of the state before the event, null on initialization
+     * @param event ID of the event, -1 on initialization
+     * @param toState name of the state after the event
+     */
+    public void publish(IMachine machine, String fromState, int event, String toState) {
+        for(Registration r: registrations.get()) {
+            if(r.event>=0 && r.event!=event) continue;
+            if(r.state!=null && (!r.state.equals(toState) || r.state.equals(fromState))) continue;
+            deliver(r, machine, fromState, event, toState);
+        }
+    }
+
+    /**
+     * Notify each listener whose filters match anywhere in a batch of events once: with the
+     * state at the start of the batch, the last event (or the event filtered on), and the
+     * state at the end of the batch
+     * @param machine the state machine
+     * @param fromState name of the state at the start of the batch
+     * @param events the events of the batch
+     * @param from index of the first event of the batch
+     * @param to index after the last event of the batch
+     * @param statesMaybe name of the state after each event of the batch, null if no listener filtered
+     * on a state when the batch started
+     * @param toState name of the state at the end of the batch
+     */
+    public void publishBatch(IMachine machine, String fromState, int[] events, int from, int to, String[] statesMaybe, String toState) {
+        if(to==from) return;
+        for(Registration r: registrations.get()) {
+            if(r.state!=null) {
+                if(statesMaybe==null || !entered(r, fromState, events, from, to, statesMaybe)) continue;
+            } else if(r.event>=0 && !contains(events, from, to, r.event)) continue;
+            deliver(r, machine, fromState, r.event>=0 ? r.event : events[to-1], toState);
+        }
+    }
+
+    /**
+     * Check whether the state of a registration was entered during a batch (by the event of
+     * the registration, if any)
+     */
+    private static boolean entered(Registration r, String fromState, int[] events, int from, int to, String[] states) {
+        String previous = fromState;
+        for(int i=from; i<to; i++) {
+            String current = states[i-from];
+            if(r.state.equals(current) && !r.state.equals(previous) && (r.event<0 || r.event==events[i])) return true;
+            previous = current;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether an event occurs in a batch
+     */
+    private static boolean contains(int[] events, int from, int to, int event) {
+        for(int i=from; i<to; i++)
+            if(events[i]==event) return true;
+        return false;
+    }
+
+    /**
+     * Deliver a notification to a listener, on the current thread or through its executor
+     */
+    private static void deliver(final Registration r, final IMachine machine, final String fromState, final int event, final String toState) {
+        if(r.executor==null)
+            r.listener.stateChanged(machine, fromState, event, toState);
+        else
+            r.executor.execute(new Runnable() {
+                public void run() {
+                    r.listener.stateChanged(machine, fromState, event, toState);
+                }
+            });
+    }
+}
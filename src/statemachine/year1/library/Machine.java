@@ -29,14 +29,12 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.library;
 
-import java.util.Observable;
-
 /**
  * Abstract state machine class: has a current state, starts in initial state,
  * and can process events by sending them to the current state
  * @author ups
  */
-public abstract class Machine extends Observable implements IMachine {
+public abstract class Machine extends ObservableMachine {
     
 	/**
 	 * The currently active state
@@ -48,8 +46,7 @@ public abstract class Machine extends Observable implements IMachine {
      */
     public void initialize() {
         setState(getInitialState());
-        setChanged();
-        notifyObservers();
+        notifyInitialized();
     }
     
     /**
@@ -67,14 +64,21 @@ public abstract class Machine extends Observable implements IMachine {
         return currentState.toString();
     }
 
+    /**
+     * Check whether the machine has been initialized
+     */
+    @Override
+    protected boolean isInitialized() {
+        return currentState!=null;
+    }
+
     /**
      * Process an incoming event, triggering appropriate transitions depending on the current state
      */
-    public void processEvent(Event event) {
+    @Override
+    protected void dispatch(int event) {
         if(currentState==null) throw new Error("State machine not initialized");
         currentState.processEvent(event);
-        setChanged();
-        notifyObservers();
     }
     
     /**
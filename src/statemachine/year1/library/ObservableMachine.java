@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package statemachine.year1.library;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Common base class for state machine implementations: processes single events or batches
+ * of events through the dispatch hook method and publishes each processed event, or each
+ * batch as a whole, to the listeners.  When there are no listeners, events are processed without looking up state
+ * names and without any synchronization.
+ * @author ups
+ */
+public abstract class ObservableMachine implements IMachine {
+
+    /**
+     * The listeners of this state machine
+     */
+    private final ListenerBus listeners = new ListenerBus();
+
+    /**
+     * Process a single event, represented by its event code
+     */
+    public void processEvent(Event event) {
+        processEvent(event.id());
+    }
+
+    /**
+     * Process a single event, given by its event alphabet ID
+     */
+    public void processEvent(int event) {
+        if(listeners.isEmpty()) {
+            dispatch(event);
+            return;
+        }
+        String from = initialStateName();
+        dispatch(event);
+        listeners.publish(this, from, event, getStateName());
+    }
+
+    /**
+     * Process a batch of events, given by their event alphabet IDs: each listener is notified
+     * at most once, after the batch
+     */
+    public void processEvents(int[] events, int from, int to) {
+        if(from<0 || to>events.length || from>to) throw new Error("Illegal event range: "+from+".."+to);
+        if(listeners.isEmpty()) {
+            for(int i=from; i<to; i++)
+                dispatch(events[i]);
+            return;
+        }
+        String start = initialStateName();
+        if(!listeners.hasStateFilters()) {
+            for(int i=from; i<to; i++)
+                dispatch(events[i]);
+            listeners.publishBatch(this, start, events, from, to, null, getStateName());
+            return;
+        }
+        // State filters need the state after each event, to find out which states were entered
+        String[] states = new String[to-from];
+        for(int i=from; i<to; i++) {
+            dispatch(events[i]);
+            states[i-from] = getStateName();
+        }
+        listeners.publishBatch(this, start, events, from, to, states, to>from ? states[to-from-1] : start);
+    }
+
+    /**
+     * Get the name of the state before processing events, failing as dispatch does if the
+     * machine has not been initialized
+     * @return the name of the current state
+     */
+    private String initialStateName() {
+        if(!isInitialized()) throw new Error("State machine not initialized");
+        return getStateName();
+    }
+
+    /**
+     * Add a listener notified whenever the machine has processed an event
+     */
+    public void addListener(StateListener listener) {
+        listeners.add(listener, null, -1, null);
+    }
+
+    /**
+     * Add a listener with filters and an optional asynchronous delivery mode
+     */
+    public void addListener(StateListener listener, String stateMaybe, int event, Executor executorMaybe) {
+        listeners.add(listener, stateMaybe, event, executorMaybe);
+    }
+
+    /**
+     * Remove all registrations of a listener
+     */
+    public void removeListener(StateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notify listeners that the machine has been initialized, if there are any
+     */
+    protected void notifyInitialized() {
+        if(listeners.isEmpty()) return;
+        listeners.publish(this, null, -1, getStateName());
+    }
+
+    /**
+     * Hook method: check whether the machine has been initialized, machines that can process
+     * events without being initialized need not override it
+     * @return true if the current state is known
+     */
+    protected boolean isInitialized() {
+        return true;
+    }
+
+    /**
+     * Hook method: process a single event without notifying listeners
+     * @param event the event alphabet ID of the event
+     */
+    protected abstract void dispatch(int event);
+}
@@ -51,9 +51,9 @@ public abstract class State {
 
     /**
      * Process the given event according to the state
-     * @param event an incoming event
+     * @param event the ID of an incoming event, as assigned by the event alphabet
      */
-    public abstract void processEvent(Event event);
+    public abstract void processEvent(int event);
     
     /**
      * Get the statemachine to which this state belongs
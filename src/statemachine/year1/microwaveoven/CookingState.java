@@ -29,8 +29,6 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.microwaveoven;
 
-import statemachine.year1.library.Event;
-
 public class CookingState extends MicrowaveOvenState {
 
     public CookingState(MicrowaveMachine machine) {
@@ -38,11 +36,11 @@ public class CookingState extends MicrowaveOvenState {
     }
 
     @Override
-    public void processEvent(Event event) {
-        if(event.code().equals("TIMER") || event.code().equals("STOP")) {
+    public void processEvent(int event) {
+        if(event==TIMER || event==STOP) {
             machine().setState(machine().INACTIVE_STATE);
         } 
-        else if(event.code().equals("OPEN")) {
+        else if(event==OPEN) {
             machine().setState(machine().DOOR_OPEN_STATE);
         }
         else
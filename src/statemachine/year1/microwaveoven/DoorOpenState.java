@@ -29,8 +29,6 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.microwaveoven;
 
-import statemachine.year1.library.Event;
-
 public class DoorOpenState extends MicrowaveOvenState {
 
     public DoorOpenState(MicrowaveMachine machine) {
@@ -38,11 +36,11 @@ public class DoorOpenState extends MicrowaveOvenState {
     }
 
     @Override
-    public void processEvent(Event event) {
-        if(event.code().equals("STOP")) {
+    public void processEvent(int event) {
+        if(event==STOP) {
             machine().setState(machine().INACTIVE_STATE);
         } 
-        else if(event.code().equals("CLOSE")) {
+        else if(event==CLOSE) {
             machine().setState(machine().COOKING_STATE);
         }
         else
@@ -29,8 +29,6 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.microwaveoven;
 
-import statemachine.year1.library.Event;
-
 public class InactiveState extends MicrowaveOvenState {
 
     public InactiveState(MicrowaveMachine machine) {
@@ -38,8 +36,8 @@ public class InactiveState extends MicrowaveOvenState {
     }
 
     @Override
-    public void processEvent(Event event) {
-        if(event.code().equals("START")) {
+    public void processEvent(int event) {
+        if(event==START) {
             machine().setState(machine().COOKING_STATE);
         } 
         else
@@ -29,6 +29,7 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year1.microwaveoven;
 
+import statemachine.year1.library.EventAlphabet;
 import statemachine.year1.library.State;
 
 /**
@@ -37,6 +38,15 @@ import statemachine.year1.library.State;
  */
 public abstract class MicrowaveOvenState extends State {
 
+    /**
+     * IDs of the events understood by the states
+     */
+    protected static final int START = EventAlphabet.intern("START");
+    protected static final int STOP = EventAlphabet.intern("STOP");
+    protected static final int TIMER = EventAlphabet.intern("TIMER");
+    protected static final int OPEN = EventAlphabet.intern("OPEN");
+    protected static final int CLOSE = EventAlphabet.intern("CLOSE");
+
     public MicrowaveOvenState(MicrowaveMachine machine) {
         super(machine);
     }
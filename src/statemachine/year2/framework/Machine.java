@@ -29,40 +29,35 @@ either expressed or implied, of the University of Southern Denmark.
 
 package statemachine.year2.framework;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Observable;
 
-import statemachine.year1.library.Event;
-import statemachine.year1.library.IMachine;
+import statemachine.year1.library.ObservableMachine;
 
 /**
- * State machine: keeps track of current state, stores a map from state name
- * to state object (used to perform state transitions).
+ * State machine: keeps track of current state, stores the states in a transition
+ * table (used to perform state transitions).
  * @author ups
  */
-public abstract class Machine extends Observable implements IMachine {
+public abstract class Machine extends ObservableMachine {
 
     /**
-     * Current state
+     * Index of the current state in the transition table
      */
-    private State currentState;
+    private int currentState;
     /**
-     * Map from state name to state object
+     * The states and transitions of the machine, frozen when the machine is initialized
      */
-    private Map<String,State> states = new HashMap<String,State>();
+    private TransitionTable table;
     
     /**
-     * Initialize the state machine based on the getAllStates hook method
+     * Initialize the state machine based on the getAllStates hook method, freezing the
+     * states into a transition table (transitions added later are not taken into account)
      */
     public void initialize() {
-        List<State> allStates = getAllStates();
-        for(State state: allStates)
-            states.put(state.getName(), state);
-        setState(allStates.get(0).getName());
-        setChanged();
-        notifyObservers();
+        table = new TransitionTable(getAllStates());
+        if(table.getStateCount()==0) throw new Error("Empty statemachine definition");
+        currentState = 0;
+        notifyInitialized();
     }
     
     /**
@@ -70,26 +65,33 @@ public abstract class Machine extends Observable implements IMachine {
      * @param stateid the ID of the active state
      */
     public void setState(String stateid) {
-        State state = states.get(stateid);
-        if(state==null) throw new Error("Illegal state identifier: "+stateid);
-        currentState = state;
+        if(table==null) throw new Error("State machine not initialized");
+        currentState = table.indexOf(stateid);
     }
 
     /**
      * Get the name of the currently active state
      */
     public String getStateName() {
-        return currentState.toString();
+        return table.getState(currentState).toString();
     }
 
     /**
-     * Process an incoming event based on the current state
+     * Check whether the machine has been initialized
      */
-    public void processEvent(Event event) {
-        if(currentState==null) throw new Error("State machine not initialized");
-        currentState.processEvent(event);
-        setChanged();
-        notifyObservers();
+    @Override
+    protected boolean isInitialized() {
+        return table!=null;
+    }
+
+    /**
+     * Process an incoming event given by its event alphabet ID based on the current state
+     */
+    @Override
+    protected void dispatch(int event) {
+        if(table==null) throw new Error("State machine not initialized");
+        int newMaybe = table.fire(currentState, event);
+        if(newMaybe>=0) currentState = newMaybe;
     }
     
     /**
@@ -35,8 +35,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import statemachine.year1.library.Event;
-
 /**
  * A generic state representation: belongs to a machine, has a name, and a number
  * of transitions.  When an event is delivered, the transitions are tested in the
@@ -84,21 +82,6 @@ public class State {
         matches.add(transition);
     }
     
-    /**
-     * Process event by testing isApplicable in sequence, and then performing the action which
-     * may have an effect and returns the name of a new state, if a transition is to be made.
-     */
-    public void processEvent(Event event) {
-        List<Transition> matches = transitions.get(event.code());
-        if(matches==null) return;
-        for(Transition tran: matches)
-            if(tran.isApplicable()) { 
-                String newMaybe = tran.action();
-                if(newMaybe!=null) machine().setState(newMaybe);
-                return;
-            }
-    }
-    
     /**
      * Get the machine to which this state belongs
      * @return the machine
@@ -0,0 +1,155 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package statemachine.year2.framework;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import statemachine.year1.library.EventAlphabet;
+
+/**
+ * Frozen form of the states of a machine: the transitions of every state are laid out in
+ * a flat table indexed by state index and event alphabet ID, and the target state of every
+ * transition is resolved to a state index ahead of time.  Processing an event thus consists
+ * of two array loads followed by testing the guards of the candidate transitions, in the
+ * same order as they were inserted into the state.  Transitions are used as-is, so any
+ * subclass of Transition works unchanged.
+ * @author ups
+ */
+public final class TransitionTable {
+
+    /**
+     * The states, indexed by state index (the initial state has index 0)
+     */
+    private final State[] states;
+    /**
+     * Map from state name to state index
+     */
+    private final Map<String,Integer> indices = new HashMap<String,Integer>();
+    /**
+     * Number of event IDs covered by the table (the size of the event alphabet when frozen,
+     * which includes all events handled by the states)
+     */
+    private final int width;
+    /**
+     * Start of the transitions for each (state,event) pair, at index state*width+event;
+     * the transitions end where the next pair starts
+     */
+    private final int[] offsets;
+    /**
+     * All transitions, grouped by (state,event) pair
+     */
+    private final Transition[] transitions;
+    /**
+     * Index of the target state of each transition, -1 if the transition has no target
+     */
+    private final int[] targets;
+
+    /**
+     * Freeze the given states into a transition table
+     * @param allStates the states, the first being the initial state
+     */
+    public TransitionTable(List<State> allStates) {
+        states = allStates.toArray(new State[allStates.size()]);
+        for(int i=0; i<states.length; i++) {
+            indices.put(states[i].getName(), i);
+            // Events may not have been interned yet, e.g., if no Event object exists so far
+            for(String event: states[i].getApplicableEvents())
+                EventAlphabet.intern(event);
+        }
+        width = EventAlphabet.size();
+        offsets = new int[states.length*width+1];
+        List<Transition> flat = new ArrayList<Transition>();
+        for(int s=0; s<states.length; s++)
+            for(int e=0; e<width; e++) {
+                offsets[s*width+e] = flat.size();
+                List<Transition> matches = states[s].getTransitionsForEvent(EventAlphabet.name(e));
+                if(matches!=null) flat.addAll(matches);
+            }
+        offsets[states.length*width] = flat.size();
+        transitions = flat.toArray(new Transition[flat.size()]);
+        targets = new int[transitions.length];
+        for(int t=0; t<transitions.length; t++) {
+            String target = transitions[t].getTarget();
+            targets[t] = target==null ? -1 : indexOf(target);
+        }
+    }
+
+    /**
+     * Process an event in the given state: perform the first applicable transition, if any
+     * @param state the index of the current state
+     * @param event the event alphabet ID of the event
+     * @return the index of the new state, -1 if no state change should take place
+     */
+    public int fire(int state, int event) {
+        if(event<0 || event>=width) return -1;
+        int index = state*width+event;
+        for(int t=offsets[index], end=offsets[index+1]; t<end; t++) {
+            Transition tran = transitions[t];
+            if(tran.isApplicable()) {
+                String newMaybe = tran.action();
+                if(newMaybe==null) return -1;
+                // Transitions overriding action may return a different target than declared
+                return newMaybe==tran.getTarget() ? targets[t] : indexOf(newMaybe);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the index of the state with the given name
+     * @param name the name of the state
+     * @return the state index
+     */
+    public int indexOf(String name) {
+        Integer index = indices.get(name);
+        if(index==null) throw new Error("Illegal state identifier: "+name);
+        return index;
+    }
+
+    /**
+     * Get the state with the given index
+     * @param index the state index
+     * @return the state
+     */
+    public State getState(int index) {
+        return states[index];
+    }
+
+    /**
+     * Get the number of states in the table
+     * @return the number of states
+     */
+    public int getStateCount() {
+        return states.length;
+    }
+}
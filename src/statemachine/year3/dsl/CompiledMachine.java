@@ -0,0 +1,216 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package statemachine.year3.dsl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import statemachine.year1.library.EventAlphabet;
+import statemachine.year2.framework.State;
+import statemachine.year2.framework.Transition;
+import statemachine.year3.dsl.FluentMachine.Condition;
+import statemachine.year3.dsl.FluentMachine.Effect;
+
+/**
+ * Immutable compiled form of a state machine defined using the fluent interface, shared
+ * by any number of machine instances (see MachinePopulation).  The transitions are encoded
+ * as a flat integer program: for each (state,event) pair, located through an offsets table,
+ * the transitions are stored in insertion order as fixed-size records holding the condition,
+ * the effect, and the index of the target state.  Extended state variables are numbered,
+ * the values they have in the machine being compiled are used as initial values.
+ * @author ups
+ */
+public final class CompiledMachine {
+
+    /**
+     * Kinds of conditions and effects in the encoded program
+     */
+    static final int NONE = 0, EQUAL = 1, GREATER = 2, SET = 1, CHANGE = 2;
+    /**
+     * Offsets of the fields of a transition record in the encoded program
+     */
+    static final int COND = 0, COND_VAR = 1, COND_VALUE = 2, EFFECT = 3, EFFECT_VAR = 4, EFFECT_ARG = 5, TARGET = 6;
+    /**
+     * Size of a transition record in the encoded program
+     */
+    static final int STRIDE = 7;
+
+    /**
+     * Names of the states, indexed by state index (the initial state has index 0)
+     */
+    private final String[] stateNames;
+    /**
+     * Names of the extended state variables, indexed by variable index
+     */
+    private final String[] variableNames;
+    /**
+     * Initial values of the extended state variables, indexed by variable index
+     */
+    private final int[] initialValues;
+    /**
+     * Number of event IDs covered by the table (the size of the event alphabet when compiled,
+     * which includes all events handled by the states)
+     */
+    final int width;
+    /**
+     * Start of the transitions for each (state,event) pair, at index state*width+event;
+     * the transitions end where the next pair starts
+     */
+    final int[] offsets;
+    /**
+     * The transition records
+     */
+    final int[] program;
+
+    /**
+     * Compile the given machine; the machine itself is not modified and can be discarded
+     * @param machine the machine definition
+     */
+    public CompiledMachine(FluentMachine machine) {
+        List<State> states = machine.getAllStates();
+        if(states.size()>Short.MAX_VALUE) throw new Error("Too many states: "+states.size());
+        stateNames = new String[states.size()];
+        Map<String,Integer> stateIndices = new HashMap<String,Integer>();
+        for(int i=0; i<stateNames.length; i++) {
+            stateNames[i] = states.get(i).getName();
+            stateIndices.put(stateNames[i], i);
+            // Events may not have been interned yet, e.g., if no Event object exists so far
+            for(String event: states.get(i).getApplicableEvents())
+                EventAlphabet.intern(event);
+        }
+        width = EventAlphabet.size();
+        offsets = new int[stateNames.length*width+1];
+        List<IntegerState> variables = new ArrayList<IntegerState>();
+        List<GenericTransition> flat = new ArrayList<GenericTransition>();
+        for(int s=0; s<stateNames.length; s++)
+            for(int e=0; e<width; e++) {
+                offsets[s*width+e] = flat.size();
+                List<Transition> matches = states.get(s).getTransitionsForEvent(EventAlphabet.name(e));
+                if(matches==null) continue;
+                for(Transition transition: matches) {
+                    if(!(transition instanceof GenericTransition))
+                        throw new Error("Cannot compile transition: "+transition);
+                    flat.add((GenericTransition)transition);
+                }
+            }
+        offsets[stateNames.length*width] = flat.size();
+        program = new int[flat.size()*STRIDE];
+        for(int t=0; t<flat.size(); t++) {
+            GenericTransition transition = flat.get(t);
+            int at = t*STRIDE;
+            Condition cond = transition.getCondition();
+            if(cond!=null) {
+                program[at+COND] = cond==Condition.EQUAL ? EQUAL : GREATER;
+                program[at+COND_VAR] = indexOf(variables, transition.getConditionVariable());
+                program[at+COND_VALUE] = transition.getConditionValue();
+            }
+            Effect effect = transition.getEffect();
+            if(effect!=null) {
+                program[at+EFFECT] = effect==Effect.SET ? SET : CHANGE;
+                program[at+EFFECT_VAR] = indexOf(variables, transition.getEffectVariable());
+                program[at+EFFECT_ARG] = transition.getEffectArgument();
+            }
+            String target = transition.getTarget();
+            if(target==null)
+                program[at+TARGET] = -1;
+            else {
+                Integer index = stateIndices.get(target);
+                if(index==null) throw new Error("Illegal state identifier: "+target);
+                program[at+TARGET] = index;
+            }
+        }
+        variableNames = new String[variables.size()];
+        initialValues = new int[variables.size()];
+        for(int v=0; v<variableNames.length; v++) {
+            variableNames[v] = variables.get(v).getName();
+            initialValues[v] = variables.get(v).value();
+        }
+    }
+
+    /**
+     * Get the index of a variable, numbering it if it has not been seen before
+     * @param variables the variables numbered so far
+     * @param variable the variable
+     * @return the index of the variable
+     */
+    private static int indexOf(List<IntegerState> variables, IntegerState variable) {
+        for(int i=0; i<variables.size(); i++)
+            if(variables.get(i)==variable) return i;
+        variables.add(variable);
+        return variables.size()-1;
+    }
+
+    /**
+     * Get the number of states
+     * @return the number of states
+     */
+    public int getStateCount() {
+        return stateNames.length;
+    }
+
+    /**
+     * Get the name of a state
+     * @param state the state index
+     * @return the name of the state
+     */
+    public String getStateName(int state) {
+        return stateNames[state];
+    }
+
+    /**
+     * Get the number of extended state variables
+     * @return the number of variables
+     */
+    public int getVariableCount() {
+        return variableNames.length;
+    }
+
+    /**
+     * Get the index of an extended state variable
+     * @param name the name of the variable
+     * @return the index of the variable
+     */
+    public int getVariableIndex(String name) {
+        for(int v=0; v<variableNames.length; v++)
+            if(variableNames[v].equals(name)) return v;
+        throw new Error("Unknown variable: "+name);
+    }
+
+    /**
+     * Get the initial value of an extended state variable
+     * @param variable the index of the variable
+     * @return the initial value
+     */
+    public int getInitialValue(int variable) {
+        return initialValues[variable];
+    }
+}
@@ -81,6 +81,54 @@ class GenericTransition extends Transition {
             throw new Error("Uknown effect");
     }
 
+    /**
+     * Get the effect of the transition
+     * @return the effect, null if none
+     */
+    Effect getEffect() {
+        return effectMaybe;
+    }
+
+    /**
+     * Get the variable on which the transition has an effect
+     * @return the variable, null if none
+     */
+    IntegerState getEffectVariable() {
+        return effectVariable;
+    }
+
+    /**
+     * Get the argument of the effect
+     * @return the argument
+     */
+    int getEffectArgument() {
+        return effectArgument;
+    }
+
+    /**
+     * Get the condition type of the transition
+     * @return the condition type, null if none
+     */
+    Condition getCondition() {
+        return conditionMaybe;
+    }
+
+    /**
+     * Get the variable tested by the condition
+     * @return the variable, null if none
+     */
+    IntegerState getConditionVariable() {
+        return condVariableMaybe;
+    }
+
+    /**
+     * Get the value which the condition compares to
+     * @return the value
+     */
+    int getConditionValue() {
+        return condValue;
+    }
+
     /**
      * String representation (for debugging)
      */
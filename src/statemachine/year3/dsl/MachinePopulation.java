@@ -0,0 +1,185 @@
+/*
+Copyright (c) 2012, Ulrik Pagh Schultz, University of Southern Denmark
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met: 
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer. 
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution. 
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies, 
+either expressed or implied, of the University of Southern Denmark.
+*/
+
+package statemachine.year3.dsl;
+
+import static statemachine.year3.dsl.CompiledMachine.*;
+
+/**
+ * A population of instances of the same compiled state machine, stored struct-of-arrays
+ * style: the current state of every instance is kept in one array, and each extended
+ * state variable in an array of its own, so an instance costs two bytes plus four bytes
+ * per variable.  Events can be delivered to a single instance, to all instances, or as
+ * a batch of (instance,event) pairs.  No listeners are supported.
+ * @author ups
+ */
+public final class MachinePopulation {
+
+    /**
+     * The shared machine definition
+     */
+    private final CompiledMachine machine;
+    /**
+     * Current state of each instance
+     */
+    private final short[] states;
+    /**
+     * Value of each extended state variable of each instance, indexed by variable then instance
+     */
+    private final int[][] variables;
+
+    /**
+     * Create a population of initialized instances of the given machine
+     * @param machine the compiled state machine
+     * @param size the number of instances
+     */
+    public MachinePopulation(CompiledMachine machine, int size) {
+        this.machine = machine;
+        this.states = new short[size];
+        this.variables = new int[machine.getVariableCount()][size];
+        for(int i=0; i<size; i++)
+            initialize(i);
+    }
+
+    /**
+     * Reset an instance to the initial state and initial variable values
+     * @param instance the index of the instance
+     */
+    public void initialize(int instance) {
+        states[instance] = 0;
+        for(int v=0; v<variables.length; v++)
+            variables[v][instance] = machine.getInitialValue(v);
+    }
+
+    /**
+     * Process an event in a single instance
+     * @param instance the index of the instance
+     * @param event the event alphabet ID of the event
+     */
+    public void processEvent(int instance, int event) {
+        if(event<0 || event>=machine.width) return;
+        step(machine.offsets, machine.program, machine.width, instance, event);
+    }
+
+    /**
+     * Process an event in every instance
+     * @param event the event alphabet ID of the event
+     */
+    public void processEvent(int event) {
+        if(event<0 || event>=machine.width) return;
+        int[] offsets = machine.offsets, program = machine.program;
+        int width = machine.width;
+        for(int i=0; i<states.length; i++)
+            step(offsets, program, width, i, event);
+    }
+
+    /**
+     * Process a batch of events, each delivered to the corresponding instance
+     * @param instances the index of the instance for each event
+     * @param events the event alphabet IDs of the events
+     * @param from index of the first event to process
+     * @param to index after the last event to process
+     */
+    public void processEvents(int[] instances, int[] events, int from, int to) {
+        if(from<0 || to>events.length || to>instances.length || from>to) throw new Error("Illegal event range: "+from+".."+to);
+        int[] offsets = machine.offsets, program = machine.program;
+        int width = machine.width;
+        for(int i=from; i<to; i++) {
+            int event = events[i];
+            if(event>=0 && event<width) step(offsets, program, width, instances[i], event);
+        }
+    }
+
+    /**
+     * Perform the first applicable transition for an event in an instance, if any
+     */
+    private void step(int[] offsets, int[] program, int width, int instance, int event) {
+        int index = states[instance]*width+event;
+        for(int t=offsets[index], end=offsets[index+1]; t<end; t++) {
+            int at = t*STRIDE;
+            int cond = program[at+COND];
+            if(cond!=NONE) {
+                int value = variables[program[at+COND_VAR]][instance];
+                if(cond==EQUAL ? value!=program[at+COND_VALUE] : value<=program[at+COND_VALUE]) continue;
+            }
+            int effect = program[at+EFFECT];
+            if(effect!=NONE) {
+                int[] variable = variables[program[at+EFFECT_VAR]];
+                variable[instance] = effect==SET ? program[at+EFFECT_ARG] : variable[instance]+program[at+EFFECT_ARG];
+            }
+            int target = program[at+TARGET];
+            if(target>=0) states[instance] = (short)target;
+            return;
+        }
+    }
+
+    /**
+     * Get the number of instances
+     * @return the number of instances
+     */
+    public int size() {
+        return states.length;
+    }
+
+    /**
+     * Get the index of the current state of an instance
+     * @param instance the index of the instance
+     * @return the state index
+     */
+    public int getState(int instance) {
+        return states[instance];
+    }
+
+    /**
+     * Get the name of the current state of an instance
+     * @param instance the index of the instance
+     * @return the name of the state
+     */
+    public String getStateName(int instance) {
+        return machine.getStateName(states[instance]);
+    }
+
+    /**
+     * Get the value of an extended state variable of an instance
+     * @param instance the index of the instance
+     * @param variable the index of the variable (see CompiledMachine.getVariableIndex)
+     * @return the value of the variable
+     */
+    public int getVariable(int instance, int variable) {
+        return variables[variable][instance];
+    }
+
+    /**
+     * Get the compiled state machine shared by the instances
+     * @return the compiled state machine
+     */
+    public CompiledMachine getMachine() {
+        return machine;
+    }
+}
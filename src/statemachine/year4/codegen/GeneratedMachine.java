@@ -1,11 +1,11 @@
 package statemachine.year4.codegen;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Observable;
 
-import statemachine.year1.library.Event;
-import statemachine.year1.library.IMachine;
+import statemachine.year1.library.EventAlphabet;
+import statemachine.year1.library.ObservableMachine;
 
 /**
  * Abstract class that serves as the basis for code generated for statemachines.
@@ -13,7 +13,7 @@ import statemachine.year1.library.IMachine;
  * @author ups
  *
  */
-public abstract class GeneratedMachine extends Observable implements IMachine {
+public abstract class GeneratedMachine extends ObservableMachine {
 
 	/**
 	 * The current state of the state machine, represented as an integer
@@ -27,6 +27,10 @@ public abstract class GeneratedMachine extends Observable implements IMachine {
 	 * Map from state IDs to state names
 	 */
 	private Map<Integer,String> state_int2code = new HashMap<Integer,String>();
+	/**
+	 * Map from event alphabet IDs to event code IDs, -1 for events not handled by the state machine
+	 */
+	private int[] event_id2int = new int[0];
 	
 	/**
 	 * Initialize the state machine, including the event and state maps
@@ -34,19 +38,28 @@ public abstract class GeneratedMachine extends Observable implements IMachine {
 	@Override
 	public void initialize() {
 		internalInitialize(event_code2int, state_int2code);
-		this.setChanged();
-		this.notifyObservers();
+		for(Map.Entry<String,Integer> entry: event_code2int.entrySet()) {
+			int id = EventAlphabet.intern(entry.getKey());
+			if(id>=event_id2int.length) {
+				int[] grown = new int[EventAlphabet.size()];
+				Arrays.fill(grown, -1);
+				System.arraycopy(event_id2int, 0, grown, 0, event_id2int.length);
+				event_id2int = grown;
+			}
+			event_id2int[id] = entry.getValue();
+		}
+		this.notifyInitialized();
 	}
 
 	/**
-	 * Process an event with the corresponding String-based event code
-	 * @param event the event to process
+	 * Process an event with the corresponding event alphabet ID, events not handled by the
+	 * state machine are ignored
+	 * @param event the ID of the event to process
 	 */
 	@Override
-	public void processEvent(Event event) {
-		internalProcessEvent(event_code2int.get(event.code()));
-		this.setChanged();
-		this.notifyObservers();
+	protected void dispatch(int event) {
+		int code = event>=0 && event<event_id2int.length ? event_id2int[event] : -1;
+		if(code>=0) internalProcessEvent(code);
 	}
 
 	/**